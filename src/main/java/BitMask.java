@@ -0,0 +1,326 @@
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.util.Arrays;
+
+public class BitMask {
+
+    private final int width, height, wordsPerRow;
+    private final long[] words;
+
+    public BitMask(int width, int height){
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width+63) >>> 6;
+        this.words = new long[wordsPerRow*height];
+    }
+
+    // any non-zero pixel is foreground, so 0/255 and 0/1 masks both work
+    public static BitMask fromProcessor(ImageProcessor ip){
+        int w = ip.getWidth(), h = ip.getHeight();
+        BitMask mask = new BitMask(w, h);
+
+        if(ip instanceof ByteProcessor){
+            byte[] pixels = (byte[]) ip.getPixels();
+            for(int y=0; y<h; y++){
+                int offset = y*w;
+                int row = y*mask.wordsPerRow;
+                for(int x=0; x<w; x++){
+                    if(pixels[offset+x]!=0) mask.words[row+(x>>>6)] |= 1L << (x & 63);
+                }
+            }
+        }
+        else{
+            for(int y=0; y<h; y++){
+                for(int x=0; x<w; x++){
+                    if(ip.getf(x, y)!=0) mask.set(x, y);
+                }
+            }
+        }
+        return mask;
+    }
+
+    public ByteProcessor toByteProcessor(){
+        ByteProcessor bp = new ByteProcessor(width, height);
+        byte[] pixels = (byte[]) bp.getPixels();
+        for(int y=0; y<height; y++){
+            int offset = y*width;
+            int row = y*wordsPerRow;
+            for(int wi=0; wi<wordsPerRow; wi++){
+                long word = words[row+wi];
+                while(word!=0){
+                    int bit = Long.numberOfTrailingZeros(word);
+                    pixels[offset+(wi<<6)+bit] = (byte) 255;
+                    word &= word-1;
+                }
+            }
+        }
+        return bp;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public int getWordsPerRow(){
+        return wordsPerRow;
+    }
+
+    public long[] getWords(){
+        return words;
+    }
+
+    public boolean get(int x, int y){
+        return (words[y*wordsPerRow+(x>>>6)] & (1L << (x & 63))) != 0;
+    }
+
+    public void set(int x, int y){
+        words[y*wordsPerRow+(x>>>6)] |= 1L << (x & 63);
+    }
+
+    public void clear(int x, int y){
+        words[y*wordsPerRow+(x>>>6)] &= ~(1L << (x & 63));
+    }
+
+    public void clear(){
+        Arrays.fill(words, 0L);
+    }
+
+    public BitMask duplicate(){
+        BitMask out = new BitMask(width, height);
+        System.arraycopy(words, 0, out.words, 0, words.length);
+        return out;
+    }
+
+    public int count(){
+        int n = 0;
+        for(long word:words) n += Long.bitCount(word);
+        return n;
+    }
+
+    public void and(BitMask other){
+        checkSize(other);
+        for(int i=0; i<words.length; i++) words[i] &= other.words[i];
+    }
+
+    public void or(BitMask other){
+        checkSize(other);
+        for(int i=0; i<words.length; i++) words[i] |= other.words[i];
+    }
+
+    public void andNot(BitMask other){
+        checkSize(other);
+        for(int i=0; i<words.length; i++) words[i] &= ~other.words[i];
+    }
+
+    // number of pixels set in both masks, without allocating an intermediate mask
+    public int countOverlap(BitMask other){
+        checkSize(other);
+        int n = 0;
+        for(int i=0; i<words.length; i++) n += Long.bitCount(words[i] & other.words[i]);
+        return n;
+    }
+
+    public int countOverlap(BitMask other, Rectangle rect){
+        checkSize(other);
+        Rectangle r = rect.intersection(new Rectangle(0, 0, width, height));
+        if(r.isEmpty()) return 0;
+
+        int firstWord = r.x >>> 6, lastWord = (r.x+r.width-1) >>> 6;
+        long firstMask = -1L << (r.x & 63);
+        long lastMask = -1L >>> (63 - ((r.x+r.width-1) & 63));
+
+        int n = 0;
+        for(int y=r.y; y<r.y+r.height; y++){
+            int row = y*wordsPerRow;
+            for(int wi=firstWord; wi<=lastWord; wi++){
+                long word = words[row+wi] & other.words[row+wi];
+                if(wi==firstWord) word &= firstMask;
+                if(wi==lastWord) word &= lastMask;
+                n += Long.bitCount(word);
+            }
+        }
+        return n;
+    }
+
+    // copies the bits in rect into a new mask, shifting whole words rather than pixels
+    public BitMask crop(Rectangle rect){
+        BitMask out = new BitMask(rect.width, rect.height);
+        int shift = rect.x & 63;
+        int srcWord = rect.x >> 6;
+
+        for(int y=0; y<rect.height; y++){
+            int sy = rect.y+y;
+            if(sy<0 || sy>=height) continue;
+            int srcRow = sy*wordsPerRow;
+            int dstRow = y*out.wordsPerRow;
+
+            for(int wi=0; wi<out.wordsPerRow; wi++){
+                int s = srcWord+wi;
+                long lo = (s>=0 && s<wordsPerRow) ? words[srcRow+s] : 0L;
+                long word;
+                if(shift==0) word = lo;
+                else{
+                    long hi = (s+1>=0 && s+1<wordsPerRow) ? words[srcRow+s+1] : 0L;
+                    word = (lo >>> shift) | (hi << (64-shift));
+                }
+                out.words[dstRow+wi] = word;
+            }
+            int tail = rect.width & 63;
+            if(tail!=0) out.words[dstRow+out.wordsPerRow-1] &= -1L >>> (64-tail);
+        }
+        return out;
+    }
+
+    // 8-connected runs, labelled with union-find on run indices; matches ParticleAnalyzer's connectivity
+    public Labels label(){
+        int[] runRow = new int[64], runStart = new int[64], runEnd = new int[64];
+        int nRuns = 0;
+        int[] rowFirstRun = new int[height+1];
+
+        for(int y=0; y<height; y++){
+            rowFirstRun[y] = nRuns;
+            int row = y*wordsPerRow;
+            int x = 0;
+            while(x<width){
+                int start = nextSetBit(row, x);
+                if(start<0) break;
+                int end = nextClearBit(row, start);
+                if(nRuns==runRow.length){
+                    runRow = Arrays.copyOf(runRow, nRuns*2);
+                    runStart = Arrays.copyOf(runStart, nRuns*2);
+                    runEnd = Arrays.copyOf(runEnd, nRuns*2);
+                }
+                runRow[nRuns] = y;
+                runStart[nRuns] = start;
+                runEnd[nRuns] = end;
+                nRuns++;
+                x = end;
+            }
+        }
+        rowFirstRun[height] = nRuns;
+
+        int[] parent = new int[nRuns];
+        for(int i=0; i<nRuns; i++) parent[i] = i;
+
+        for(int y=1; y<height; y++){
+            int a = rowFirstRun[y-1], aEnd = rowFirstRun[y];
+            int b = rowFirstRun[y], bEnd = rowFirstRun[y+1];
+            while(a<aEnd && b<bEnd){
+                // runs are half-open, so touching diagonally means start <= otherEnd
+                if(runStart[a]<=runEnd[b] && runStart[b]<=runEnd[a]) union(parent, a, b);
+                if(runEnd[a]<runEnd[b]) a++;
+                else b++;
+            }
+        }
+
+        int[] runLabel = new int[nRuns];
+        int[] rootLabel = new int[nRuns];
+        int nLabels = 0;
+        for(int i=0; i<nRuns; i++){
+            int root = find(parent, i);
+            if(root==i) rootLabel[i] = ++nLabels;
+            runLabel[i] = rootLabel[root];
+        }
+
+        return new Labels(width, height, nLabels,
+                Arrays.copyOf(runRow, nRuns), Arrays.copyOf(runStart, nRuns),
+                Arrays.copyOf(runEnd, nRuns), runLabel);
+    }
+
+    private int nextSetBit(int row, int from){
+        int wi = from >>> 6;
+        if(wi>=wordsPerRow) return -1;
+        long word = words[row+wi] & (-1L << (from & 63));
+        while(true){
+            if(word!=0){
+                int x = (wi<<6) + Long.numberOfTrailingZeros(word);
+                return x<width ? x : -1;
+            }
+            if(++wi==wordsPerRow) return -1;
+            word = words[row+wi];
+        }
+    }
+
+    private int nextClearBit(int row, int from){
+        int wi = from >>> 6;
+        long word = ~words[row+wi] & (-1L << (from & 63));
+        while(true){
+            if(word!=0){
+                int x = (wi<<6) + Long.numberOfTrailingZeros(word);
+                return Math.min(x, width);
+            }
+            if(++wi==wordsPerRow) return width;
+            word = ~words[row+wi];
+        }
+    }
+
+    private static int find(int[] parent, int i){
+        while(parent[i]!=i){
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b){
+        int ra = find(parent, a), rb = find(parent, b);
+        if(ra==rb) return;
+        // keep the earliest run as root so labels come out in raster order
+        if(ra<rb) parent[rb] = ra;
+        else parent[ra] = rb;
+    }
+
+    private void checkSize(BitMask other){
+        if(other.width!=width || other.height!=height){
+            throw new IllegalArgumentException("Mask sizes differ: "+width+"x"+height+" vs "+other.width+"x"+other.height);
+        }
+    }
+
+    public static class Labels {
+        public final int width, height, nLabels, nRuns;
+        public final int[] runRow, runStart, runEnd, runLabel;
+
+        Labels(int width, int height, int nLabels, int[] runRow, int[] runStart, int[] runEnd, int[] runLabel){
+            this.width = width;
+            this.height = height;
+            this.nLabels = nLabels;
+            this.nRuns = runRow.length;
+            this.runRow = runRow;
+            this.runStart = runStart;
+            this.runEnd = runEnd;
+            this.runLabel = runLabel;
+        }
+
+        public int[] getAreas(){
+            int[] areas = new int[nLabels+1];
+            for(int i=0; i<nRuns; i++) areas[runLabel[i]] += runEnd[i]-runStart[i];
+            return areas;
+        }
+
+        public Rectangle[] getBounds(){
+            Rectangle[] bounds = new Rectangle[nLabels+1];
+            for(int i=0; i<nRuns; i++){
+                Rectangle r = new Rectangle(runStart[i], runRow[i], runEnd[i]-runStart[i], 1);
+                int l = runLabel[i];
+                if(bounds[l]==null) bounds[l] = r;
+                else bounds[l].add(r);
+            }
+            return bounds;
+        }
+
+        public int[] toLabelImage(){
+            int[] labels = new int[width*height];
+            for(int i=0; i<nRuns; i++){
+                int offset = runRow[i]*width;
+                Arrays.fill(labels, offset+runStart[i], offset+runEnd[i], runLabel[i]);
+            }
+            return labels;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Links cells between consecutive frames by overlap and centroid distance. Candidates come from a grid
+// over the previous frame's cell bounds, so each cell is only compared with its neighbours.
+public class CellTracker {
+
+    public static final String NO_EVENT = "", DIVISION = "division", FUSION = "fusion";
+
+    private final double maxDistance, minOverlap;
+    private int nextTrackId = 1;
+
+    private Cell[] previous = new Cell[0];
+
+    public CellTracker(double maxDistance, double minOverlap){
+        this.maxDistance = maxDistance;
+        this.minOverlap = minOverlap;
+    }
+
+    private static class Cell {
+        final Rectangle bounds;
+        final BitMask mask;
+        final int area;
+        final double xc, yc;
+        int trackId;
+
+        // the cell's own pixels: the frame mask inside its bounds, less any neighbour reaching into them
+        Cell(Roi roi, BitMask frameMask){
+            bounds = roi.getBounds();
+            mask = frameMask.crop(bounds);
+            ImageProcessor roiMask = roi.getMask();
+            if(roiMask!=null) mask.and(BitMask.fromProcessor(roiMask));
+
+            long[] words = mask.getWords();
+            int wordsPerRow = mask.getWordsPerRow();
+            int n = 0;
+            double sx = 0, sy = 0;
+            for(int y=0; y<bounds.height; y++){
+                for(int wi=0; wi<wordsPerRow; wi++){
+                    long word = words[y*wordsPerRow+wi];
+                    while(word!=0){
+                        n++;
+                        sx += (wi<<6)+Long.numberOfTrailingZeros(word);
+                        sy += y;
+                        word &= word-1;
+                    }
+                }
+            }
+            area = n;
+            xc = bounds.x + (n>0 ? sx/n : 0);
+            yc = bounds.y + (n>0 ? sy/n : 0);
+        }
+    }
+
+    private static class Pair {
+        final int prev, cur;
+        final double iou, overlap, distance;
+
+        Pair(int prev, int cur, double iou, double overlap, double distance){
+            this.prev = prev;
+            this.cur = cur;
+            this.iou = iou;
+            this.overlap = overlap;
+            this.distance = distance;
+        }
+    }
+
+    public static class Link {
+        public final int trackId, parentTrackId;
+        public final String event;
+
+        Link(int trackId, int parentTrackId, String event){
+            this.trackId = trackId;
+            this.parentTrackId = parentTrackId;
+            this.event = event;
+        }
+    }
+
+    // returns the link for every cell of the new frame, in the same order as rois; cellMask is the mask they were traced from
+    public Link[] link(Roi[] rois, BitMask cellMask){
+        Cell[] current = new Cell[rois.length];
+        for(int i=0; i<rois.length; i++) current[i] = new Cell(rois[i], cellMask);
+
+        ArrayList<Pair> pairs = findCandidates(current);
+
+        // greedy one-to-one assignment, best overlap first, ties broken by distance then index
+        pairs.sort((a, b) -> {
+            if(a.iou!=b.iou) return Double.compare(b.iou, a.iou);
+            if(a.distance!=b.distance) return Double.compare(a.distance, b.distance);
+            if(a.prev!=b.prev) return Integer.compare(a.prev, b.prev);
+            return Integer.compare(a.cur, b.cur);
+        });
+
+        int[] prevMatch = new int[previous.length];
+        int[] curMatch = new int[current.length];
+        Arrays.fill(prevMatch, -1);
+        Arrays.fill(curMatch, -1);
+        for(Pair p:pairs){
+            if(prevMatch[p.prev]>=0 || curMatch[p.cur]>=0) continue;
+            prevMatch[p.prev] = p.cur;
+            curMatch[p.cur] = p.prev;
+        }
+
+        int[] parentTrack = new int[current.length];
+        String[] events = new String[current.length];
+        Arrays.fill(events, NO_EVENT);
+        for(Pair p:pairs){
+            if(p.overlap<minOverlap) continue;
+            // an unlinked cell largely covering a cell that already continued elsewhere is its sister
+            if(curMatch[p.cur]<0 && prevMatch[p.prev]>=0 && parentTrack[p.cur]==0){
+                parentTrack[p.cur] = previous[p.prev].trackId;
+                events[p.cur] = DIVISION;
+            }
+            // a linked cell also covering a cell whose track ended here has absorbed it
+            if(curMatch[p.cur]>=0 && curMatch[p.cur]!=p.prev && prevMatch[p.prev]<0){
+                events[p.cur] = FUSION;
+            }
+        }
+
+        Link[] links = new Link[current.length];
+        for(int i=0; i<current.length; i++){
+            current[i].trackId = curMatch[i]>=0 ? previous[curMatch[i]].trackId : nextTrackId++;
+            links[i] = new Link(current[i].trackId, parentTrack[i], events[i]);
+        }
+
+        previous = current;
+        return links;
+    }
+
+    private ArrayList<Pair> findCandidates(Cell[] current){
+        ArrayList<Pair> pairs = new ArrayList<>();
+        if(previous.length==0) return pairs;
+
+        Rectangle[] bounds = new Rectangle[previous.length];
+        for(int i=0; i<previous.length; i++) bounds[i] = previous[i].bounds;
+        SpatialIndex index = new SpatialIndex(bounds);
+
+        int grow = (int) Math.ceil(maxDistance);
+        for(int c=0; c<current.length; c++){
+            Cell cur = current[c];
+            Rectangle search = new Rectangle(cur.bounds);
+            search.grow(grow, grow);
+            final int ci = c;
+            index.query(search, p -> {
+                Cell prev = previous[p];
+                double distance = Math.hypot(prev.xc-cur.xc, prev.yc-cur.yc);
+                int intersection = countOverlap(prev, cur);
+                if(intersection==0 && distance>maxDistance) return true;
+
+                double iou = (double) intersection/(prev.area+cur.area-intersection);
+                double overlap = (double) intersection/Math.max(1, Math.min(prev.area, cur.area));
+                pairs.add(new Pair(p, ci, iou, overlap, distance));
+                return true;
+            });
+        }
+        return pairs;
+    }
+
+    // both cells cut down to where their bounds meet, so the words line up and the overlap is a popcount
+    private static int countOverlap(Cell a, Cell b){
+        Rectangle r = a.bounds.intersection(b.bounds);
+        if(r.isEmpty()) return 0;
+        BitMask ma = a.mask.crop(new Rectangle(r.x-a.bounds.x, r.y-a.bounds.y, r.width, r.height));
+        BitMask mb = b.mask.crop(new Rectangle(r.x-b.bounds.x, r.y-b.bounds.y, r.width, r.height));
+        return ma.countOverlap(mb);
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ Resume state for one image, kept in "<save dir>/.checkpoint":
+   segmentation.ncstore  the cells, nuclei, measurements and matching, in ResultStore format
+   fingerprint           identifies that segmentation, so a rerun can tell whether it found the same objects
+   settings              the settings the segmentation was made with, for a caller that resumes without segmenting
+                         again (empty if the caller gave none)
+   progress.tsv          one line per exported cell: index, then path (relative to the save dir), length and
+                         CRC32 of every file written for it; appended in batches and forced to disk
+   complete              written once every cell has been exported
+ A cell counts as done only if all of its files are still there with the recorded length and checksum.
+ */
+public class Checkpoint {
+
+    public static final String DIR = ".checkpoint";
+    private static final String SEGMENTATION = "segmentation.ncstore", FINGERPRINT = "fingerprint",
+            SETTINGS = "settings", PROGRESS = "progress.tsv", COMPLETE = "complete";
+    private static final int FLUSH_CELLS = 100;
+    private static final long FLUSH_MILLIS = 5000;
+
+    private final File saveDir, dir;
+    private final StringBuilder pending = new StringBuilder();
+    private int nPending = 0;
+    private long lastFlush = System.currentTimeMillis();
+
+    public Checkpoint(String saveDir){
+        this.saveDir = new File(saveDir);
+        this.dir = new File(saveDir, DIR);
+    }
+
+    public boolean hasSegmentation(){
+        return new File(dir, SEGMENTATION).exists() && new File(dir, FINGERPRINT).exists();
+    }
+
+    public ResultStore loadSegmentation() throws IOException {
+        return ResultStore.load(new File(dir, SEGMENTATION));
+    }
+
+    public String getFingerprint() throws IOException {
+        File f = new File(dir, FINGERPRINT);
+        return f.exists() ? new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim() : null;
+    }
+
+    public String getSettings() throws IOException {
+        File f = new File(dir, SETTINGS);
+        return f.exists() ? new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim() : null;
+    }
+
+    public void saveSettings(String settings) throws IOException {
+        ShardManifest.writeAtomically(new File(dir, SETTINGS), settings+"\n");
+    }
+
+    public boolean isComplete(){
+        return new File(dir, COMPLETE).exists();
+    }
+
+    // starts over for a new segmentation: old progress no longer refers to the same cells
+    public void saveSegmentation(ResultStore store, String fingerprint, String settings) throws IOException {
+        dir.mkdirs();
+        new File(dir, COMPLETE).delete();
+        new File(dir, PROGRESS).delete();
+        File tmp = new File(dir, SEGMENTATION+".tmp");
+        store.save(tmp);
+        Files.move(tmp.toPath(), new File(dir, SEGMENTATION).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ShardManifest.writeAtomically(new File(dir, FINGERPRINT), fingerprint+"\n");
+        saveSettings(settings);
+    }
+
+    // files recorded for each finished cell; a later line for the same cell replaces an earlier one, and a
+    // line cut short by a crash is ignored
+    public HashMap<Integer, String[]> loadProgress() throws IOException {
+        HashMap<Integer, String[]> progress = new HashMap<>();
+        File f = new File(dir, PROGRESS);
+        if(!f.exists()) return progress;
+        byte[] bytes = Files.readAllBytes(f.toPath());
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        int end = text.lastIndexOf('\n');
+        if(end<0) return progress;
+        for(String line:text.substring(0, end).split("\n")){
+            String[] fields = line.split("\t");
+            if(fields.length<2 || !fields[fields.length-1].equals("ok") || (fields.length-2)%3!=0) continue;
+            String[] files = new String[fields.length-2];
+            System.arraycopy(fields, 1, files, 0, files.length);
+            progress.put(Integer.parseInt(fields[0]), files);
+        }
+        return progress;
+    }
+
+    // relative paths of the recorded files that are still on disk unchanged
+    public ArrayList<String> getVerifiedFiles(String[] recorded) throws IOException {
+        ArrayList<String> verified = new ArrayList<>();
+        for(int i=0; i+2<recorded.length; i+=3){
+            File f = new File(saveDir, recorded[i]);
+            if(!f.exists() || f.length()!=Long.parseLong(recorded[i+1])) continue;
+            if(getCRC(f)!=Long.parseLong(recorded[i+2])) continue;
+            verified.add(recorded[i]);
+        }
+        return verified;
+    }
+
+    public String getRelativePath(File f){
+        return saveDir.getAbsoluteFile().toPath().relativize(f.getAbsoluteFile().toPath()).toString();
+    }
+
+    public void recordCell(int index, List<File> files) throws IOException {
+        pending.append(index);
+        for(File f:files){
+            pending.append('\t').append(getRelativePath(f))
+                    .append('\t').append(f.length()).append('\t').append(getCRC(f));
+        }
+        pending.append("\tok\n");
+        nPending++;
+        if(nPending>=FLUSH_CELLS || System.currentTimeMillis()-lastFlush>=FLUSH_MILLIS) flush();
+    }
+
+    public void flush() throws IOException {
+        if(nPending>0){
+            try(FileOutputStream out = new FileOutputStream(new File(dir, PROGRESS), true)){
+                out.write(pending.toString().getBytes(StandardCharsets.UTF_8));
+                out.getChannel().force(true);
+            }
+            pending.setLength(0);
+            nPending = 0;
+        }
+        lastFlush = System.currentTimeMillis();
+    }
+
+    public void finish() throws IOException {
+        flush();
+        ShardManifest.writeAtomically(new File(dir, COMPLETE), "");
+    }
+
+    static long getCRC(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[65536];
+        try(InputStream in = new FileInputStream(f)){
+            int n;
+            while((n = in.read(buffer))>0) crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+}
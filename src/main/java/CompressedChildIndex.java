@@ -0,0 +1,85 @@
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/*
+ Which children (e.g. nuclei) belong to each parent (e.g. cell), for when one int array per cell is too much:
+ each parent's children are stored as the gaps between consecutive child indices, as varints in one shared
+ byte array. Children are numbered in raster order, so the gaps within a cell are small and mostly take a
+ single byte.
+ */
+public class CompressedChildIndex {
+
+    private final int[] start, count;
+    private final byte[] data;
+
+    // parentOf gives the parent of child j, or -1; the children are visited twice and never stored as ints
+    public CompressedChildIndex(int nParents, int nChildren, IntUnaryOperator parentOf){
+        count = new int[nParents];
+        int[] last = new int[nParents];
+        Arrays.fill(last, -1);
+        long[] length = new long[nParents];
+        for(int j=0; j<nChildren; j++){
+            int p = parentOf.applyAsInt(j);
+            if(p<0) continue;
+            length[p] += getVarIntLength(j-last[p]);
+            last[p] = j;
+            count[p]++;
+        }
+
+        start = new int[nParents+1];
+        long total = 0;
+        for(int p=0; p<nParents; p++){
+            total += length[p];
+            if(total>Integer.MAX_VALUE) throw new IllegalArgumentException("Too many children for one index");
+            start[p+1] = (int) total;
+        }
+        length = null;
+
+        data = new byte[start[nParents]];
+        int[] fill = Arrays.copyOf(start, nParents);
+        Arrays.fill(last, -1);
+        for(int j=0; j<nChildren; j++){
+            int p = parentOf.applyAsInt(j);
+            if(p<0) continue;
+            fill[p] = putVarInt(j-last[p], fill[p]);
+            last[p] = j;
+        }
+    }
+
+    private static int getVarIntLength(int value){
+        int length = 1;
+        while((value >>>= 7)!=0) length++;
+        return length;
+    }
+
+    private int putVarInt(int value, int position){
+        while((value & ~0x7f)!=0){
+            data[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+        return position;
+    }
+
+    // in ascending order, like ContainmentTree.getChildren
+    public int[] get(int parent){
+        int[] children = new int[count[parent]];
+        int position = start[parent], child = -1;
+        for(int k=0; k<children.length; k++){
+            int gap = 0, shift = 0;
+            byte b;
+            do{
+                b = data[position++];
+                gap |= (b & 0x7f) << shift;
+                shift += 7;
+            } while(b<0);
+            child += gap;
+            children[k] = child;
+        }
+        return children;
+    }
+
+    public int getBytes(){
+        return data.length+8*count.length;
+    }
+}
@@ -0,0 +1,184 @@
+import ij.gui.Roi;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Objects on several levels (0 = outermost, e.g. cell -> nucleus -> nucleolus), each assigned to the
+// object on the level above whose Roi contains its centre.
+public class ContainmentTree {
+
+    private final int nLevels;
+    private final Roi[][] rois;
+    private final int[][] parent;
+    private final int[][] childStart, children;
+
+    public ContainmentTree(Roi[][] rois, Point[][] centres){
+        this.nLevels = rois.length;
+        this.rois = rois;
+        this.parent = new int[nLevels][];
+        this.childStart = new int[nLevels][];
+        this.children = new int[nLevels][];
+
+        parent[0] = new int[rois[0].length];
+        Arrays.fill(parent[0], -1);
+        for(int level=1; level<nLevels; level++){
+            parent[level] = findParents(rois[level-1], centres[level]);
+        }
+
+        // children as one flat array per level, in ascending index order
+        for(int level=0; level<nLevels-1; level++){
+            int nParents = rois[level].length;
+            int[] start = new int[nParents+1];
+            for(int p:parent[level+1]) if(p>=0) start[p+1]++;
+            for(int i=1; i<=nParents; i++) start[i] += start[i-1];
+
+            int[] fill = Arrays.copyOf(start, nParents);
+            int[] flat = new int[start[nParents]];
+            int[] childParents = parent[level+1];
+            for(int c=0; c<childParents.length; c++){
+                int p = childParents[c];
+                if(p>=0) flat[fill[p]++] = c;
+            }
+            childStart[level] = start;
+            children[level] = flat;
+        }
+    }
+
+    // when several parents contain the centre (an object inside another's hole), the tightest one wins
+    private static int[] findParents(Roi[] parents, Point[] centres){
+        Rectangle[] bounds = new Rectangle[parents.length];
+        for(int i=0; i<parents.length; i++) bounds[i] = parents[i].getBounds();
+        SpatialIndex index = new SpatialIndex(bounds);
+
+        int[] out = new int[centres.length];
+        for(int c=0; c<centres.length; c++) out[c] = findParent(parents, bounds, index, centres[c]);
+        return out;
+    }
+
+    // index is a SpatialIndex over bounds; -1 if no parent contains pt
+    static int findParent(Roi[] parents, Rectangle[] bounds, SpatialIndex index, Point pt){
+        int[] best = {-1};
+        index.query(pt.x, pt.y, i -> {
+            if(parents[i].contains(pt.x, pt.y)){
+                if(best[0]<0 || area(bounds[i])<area(bounds[best[0]])) best[0] = i;
+            }
+            return true;
+        });
+        return best[0];
+    }
+
+    private static long area(Rectangle r){
+        return (long) r.width*r.height;
+    }
+
+    public int getNLevels(){
+        return nLevels;
+    }
+
+    public int size(int level){
+        return rois[level].length;
+    }
+
+    public int getParent(int level, int i){
+        return parent[level][i];
+    }
+
+    public int[] getChildren(int level, int i){
+        return Arrays.copyOfRange(children[level], childStart[level][i], childStart[level][i+1]);
+    }
+
+    public int getNChildren(int level, int i){
+        return childStart[level][i+1]-childStart[level][i];
+    }
+
+    /*
+     Counts and measurement statistics of every deeper level, for every object, in one bottom-up pass.
+     Each object's statistics are merged into its parent with the pairwise mean/variance update,
+     so the cost is linear in the number of objects.
+     */
+    public RollUp rollUp(List<LinkedHashMap<String, double[]>> measurements, String[] columns){
+        RollUp r = new RollUp(columns, nLevels);
+        int nColumns = columns.length;
+
+        for(int level=0; level<nLevels; level++){
+            int n = rois[level].length;
+            for(int deeper=level+1; deeper<nLevels; deeper++){
+                r.count[level][deeper] = new double[n];
+                r.mean[level][deeper] = new double[nColumns][n];
+                r.m2[level][deeper] = new double[nColumns][n];
+            }
+        }
+
+        for(int level=nLevels-1; level>=1; level--){
+            int[] parents = parent[level];
+            double[][] values = new double[nColumns][];
+            for(int c=0; c<nColumns; c++) values[c] = measurements.get(level)==null ? null : measurements.get(level).get(columns[c]);
+
+            for(int i=0; i<parents.length; i++){
+                int p = parents[i];
+                if(p<0) continue;
+
+                // the object itself
+                double nA = r.count[level-1][level][p];
+                r.count[level-1][level][p] = nA+1;
+                for(int c=0; c<nColumns; c++){
+                    if(values[c]==null) continue;
+                    merge(r.mean[level-1][level][c], r.m2[level-1][level][c], p, nA, values[c][i], 0, 1);
+                }
+
+                // everything already rolled up into it from further down
+                for(int deeper=level+1; deeper<nLevels; deeper++){
+                    double nB = r.count[level][deeper][i];
+                    if(nB==0) continue;
+                    double nPrev = r.count[level-1][deeper][p];
+                    r.count[level-1][deeper][p] = nPrev+nB;
+                    for(int c=0; c<nColumns; c++){
+                        merge(r.mean[level-1][deeper][c], r.m2[level-1][deeper][c], p, nPrev,
+                                r.mean[level][deeper][c][i], r.m2[level][deeper][c][i], nB);
+                    }
+                }
+            }
+        }
+        return r;
+    }
+
+    private static void merge(double[] mean, double[] m2, int p, double nA, double meanB, double m2B, double nB){
+        double n = nA+nB;
+        double delta = meanB-mean[p];
+        mean[p] += delta*nB/n;
+        m2[p] += m2B + delta*delta*nA*nB/n;
+    }
+
+    public static class RollUp {
+        public final String[] columns;
+        // indexed [level][deeper level][object], and [level][deeper level][column][object]
+        final double[][][] count;
+        final double[][][][] mean, m2;
+
+        RollUp(String[] columns, int nLevels){
+            this.columns = columns;
+            count = new double[nLevels][nLevels][];
+            mean = new double[nLevels][nLevels][][];
+            m2 = new double[nLevels][nLevels][][];
+        }
+
+        public double getCount(int level, int deeper, int i){
+            return count[level][deeper][i];
+        }
+
+        // matches StatUtils.mean: NaN when there is nothing to average
+        public double getMean(int level, int deeper, int column, int i){
+            return count[level][deeper][i]==0 ? Double.NaN : mean[level][deeper][column][i];
+        }
+
+        // matches sqrt(StatUtils.variance): sample standard deviation, 0 for a single value
+        public double getStd(int level, int deeper, int column, int i){
+            double n = count[level][deeper][i];
+            if(n==0) return Double.NaN;
+            if(n==1) return 0;
+            return Math.sqrt(m2[level][deeper][column][i]/(n-1));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ Whole-image or whole-dataset summary of every measurement column: exact count, mean, std, min and max,
+ plus median and percentiles from a QuantileSketch, for the nuclei, for the cells and for the number of
+ nuclei per cell. Cells are added one at a time, so nothing per nucleus has to be kept. Statistics of
+ separate images, threads or processes are combined with merge, or written with save and read back with
+ load in another process; the report is a small table with one row per measurement.
+ */
+public class DatasetStatistics {
+
+    public static final String REPORT_NAME = "Dataset statistics.csv", FILE_NAME = "Dataset statistics.sketch";
+    public static final String NUCLEI = "Nuclei", CELLS = "Cells", NUCLEI_PER_CELL = "N nuclei in cell";
+    public static final double[] PERCENTILES = {0.05, 0.25, 0.5, 0.75, 0.95};
+    private static final String[] PERCENTILE_NAMES = {"P5", "P25", "Median", "P75", "P95"};
+
+    // keyed by objects and measurement, e.g. "Nuclei\tArea"
+    private final LinkedHashMap<String, Summary> summaries = new LinkedHashMap<>();
+
+    public static class Summary {
+        long n = 0;
+        double mean = 0, m2 = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        QuantileSketch sketch = new QuantileSketch();
+
+        // Welford's update, so the variance doesn't lose precision however many values come in
+        public void add(double value){
+            if(Double.isNaN(value)) return;
+            n++;
+            double delta = value-mean;
+            mean += delta/n;
+            m2 += delta*(value-mean);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sketch.update(value);
+        }
+
+        // Chan et al.'s pairwise combination of the moments
+        public void merge(Summary other){
+            if(other.n==0) return;
+            long total = n+other.n;
+            double delta = other.mean-mean;
+            mean += delta*other.n/total;
+            m2 += other.m2+delta*delta*n*other.n/total;
+            n = total;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sketch.merge(other.sketch);
+        }
+
+        public long getN(){
+            return n;
+        }
+
+        public double getMean(){
+            return n==0 ? Double.NaN : mean;
+        }
+
+        // sample standard deviation, as commons-math variance gives for the per-cell summary
+        public double getStd(){
+            return n<2 ? Double.NaN : Math.sqrt(m2/(n-1));
+        }
+
+        public double getQuantile(double q){
+            return sketch.getQuantile(q);
+        }
+    }
+
+    public Summary get(String objects, String measurement){
+        return summaries.computeIfAbsent(objects+"\t"+measurement, key -> new Summary());
+    }
+
+    // one cell with its measurements and those of the nNuclei nuclei in it; X and Y are left out, as in the
+    // per-cell summary
+    public void addCell(LinkedHashMap<String, double[]> cellMeasurements, int cell,
+                        LinkedHashMap<String, double[]> containedNucleusMeasurements, int nNuclei){
+        for(Map.Entry<String, double[]> e:cellMeasurements.entrySet()){
+            if(isPosition(e.getKey())) continue;
+            get(CELLS, e.getKey()).add(e.getValue()[cell]);
+        }
+        get(CELLS, NUCLEI_PER_CELL).add(nNuclei);
+        for(Map.Entry<String, double[]> e:containedNucleusMeasurements.entrySet()){
+            if(isPosition(e.getKey())) continue;
+            Summary summary = get(NUCLEI, e.getKey());
+            for(double value:e.getValue()) summary.add(value);
+        }
+    }
+
+    private static boolean isPosition(String measurement){
+        return measurement.equals("X") || measurement.equals("Y");
+    }
+
+    public void merge(DatasetStatistics other){
+        for(Map.Entry<String, Summary> e:other.summaries.entrySet()){
+            summaries.computeIfAbsent(e.getKey(), key -> new Summary()).merge(e.getValue());
+        }
+    }
+
+    public ResultsTable getReport(){
+        ResultsTable rt = new ResultsTable();
+        for(Map.Entry<String, Summary> e:summaries.entrySet()){
+            String[] key = e.getKey().split("\t");
+            Summary s = e.getValue();
+            rt.incrementCounter();
+            rt.addValue("Objects", key[0]);
+            rt.addValue("Measurement", key[1]);
+            rt.addValue("N", s.getN());
+            rt.addValue("Mean", s.getMean());
+            rt.addValue("Std", s.getStd());
+            rt.addValue("Min", s.getN()==0 ? Double.NaN : s.min);
+            for(int p=0; p<PERCENTILES.length; p++) rt.addValue(PERCENTILE_NAMES[p], s.getQuantile(PERCENTILES[p]));
+            rt.addValue("Max", s.getN()==0 ? Double.NaN : s.max);
+        }
+        return rt;
+    }
+
+    // one line per measurement: objects, measurement, n, mean, m2, min, max and the sketch
+    public void save(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, Summary> e:summaries.entrySet()){
+            Summary s = e.getValue();
+            sb.append(e.getKey()).append('\t').append(s.n).append('\t').append(s.mean).append('\t').append(s.m2)
+                    .append('\t').append(s.min).append('\t').append(s.max).append('\t').append(s.sketch).append('\n');
+        }
+        ShardManifest.writeAtomically(file, sb.toString());
+    }
+
+    public static DatasetStatistics load(File file) throws IOException {
+        DatasetStatistics statistics = new DatasetStatistics();
+        for(String line:Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)){
+            if(line.isEmpty()) continue;
+            String[] fields = line.split("\t");
+            Summary s = statistics.get(fields[0], fields[1]);
+            s.n = Long.parseLong(fields[2]);
+            s.mean = Double.parseDouble(fields[3]);
+            s.m2 = Double.parseDouble(fields[4]);
+            s.min = Double.parseDouble(fields[5]);
+            s.max = Double.parseDouble(fields[6]);
+            s.sketch = QuantileSketch.parse(fields[7]);
+        }
+        return statistics;
+    }
+
+    // the report and the mergeable sketches side by side in dir
+    public void saveReport(String dir) throws IOException {
+        getReport().save(dir+File.separator+REPORT_NAME);
+        save(new File(dir, FILE_NAME));
+    }
+}
@@ -0,0 +1,71 @@
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.NonBlockingGenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.OpenDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+// Filters the cells of a saved result store and re-exports tables, crops and Roi sets for the matches only
+public class FilterResultsGUI_ implements PlugIn {
+
+    private static final String PREFS = "FilterResultsGUI_.";
+
+    @Override
+    public void run(String s) {
+        OpenDialog od = new OpenDialog("Choose result store ("+ResultStore.FILE_NAME+")...");
+        if(od.getPath()==null) return;
+
+        ResultStore store;
+        try {
+            store = ResultStore.load(new File(od.getPath()));
+        } catch (IOException e) {
+            IJ.error("Could not read result store: "+e.getMessage());
+            return;
+        }
+
+        NonBlockingGenericDialog gd = new NonBlockingGenericDialog("Filter cells of "+store.getTitle());
+        gd.addMessage(store.getNCells()+" cells. Columns that can be filtered on:\n"+String.join(", ", store.getCellColumnNames()));
+        gd.addStringField("Keep cells where", Prefs.get(PREFS+"predicate", "N nuclei in cell >= 3 && Area mean > 0"), 50);
+        gd.addMessage("Combine conditions with &&, e.g. N nuclei in cell >= 3 && Area mean > 40");
+        gd.addCheckbox("Save results per cell?", Prefs.get(PREFS+"saveResults", true));
+        gd.addCheckbox("Save individual cell crops?", Prefs.get(PREFS+"saveImages", false));
+        gd.addCheckbox("Save Roi sets?", Prefs.get(PREFS+"saveRoiSets", false));
+        gd.showDialog();
+        if(gd.wasCanceled()) return;
+
+        String predicate = gd.getNextString();
+        boolean saveResults = gd.getNextBoolean();
+        boolean saveImages = gd.getNextBoolean();
+        boolean saveRoiSets = gd.getNextBoolean();
+        Prefs.set(PREFS+"predicate", predicate);
+        Prefs.set(PREFS+"saveResults", saveResults);
+        Prefs.set(PREFS+"saveImages", saveImages);
+        Prefs.set(PREFS+"saveRoiSets", saveRoiSets);
+
+        BitSet cells;
+        try {
+            cells = store.select(predicate);
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+        IJ.log(cells.cardinality()+" of "+store.getNCells()+" cells match \""+predicate+"\"");
+        if(cells.isEmpty()) return;
+
+        DirectoryChooser directoryChooser = new DirectoryChooser("Choose save directory for the filtered cells");
+        String dir = directoryChooser.getDirectory();
+        if(dir==null) return;
+
+        try {
+            ResultsTable summary = store.export(cells, dir, saveResults, saveImages, saveRoiSets);
+            summary.show("Summary Results - filtered");
+        } catch (IOException e) {
+            IJ.error("Oops! Could not export the filtered cells: "+e.getMessage());
+        }
+    }
+}
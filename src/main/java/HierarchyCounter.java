@@ -0,0 +1,171 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+
+import java.awt.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+
+// Counts and measures objects over any number of nested channels, e.g. cells -> nuclei -> nucleoli.
+// Level 0 is the outermost channel; every level is matched into the one above it.
+public class HierarchyCounter {
+
+    private final int nLevels;
+    private final BitMask[] masks;
+    private final Calibration calibration;
+    private String[] names, plurals;
+    private ArrayList<String> columns;
+    private Roi[][] rois;
+    private Point[][] centres;
+    private ArrayList<LinkedHashMap<String, double[]>> measurements;
+    private double[][] areas;
+    private ContainmentTree tree;
+    private ContainmentTree.RollUp rollUp;
+    private ResultsTable[] summaryTables;
+    private String saveDir = null;
+
+    public HierarchyCounter(ImagePlus imp, int[] channels){
+        this(imp, channels, null, true);
+    }
+
+    // thresholds holds one of ParallelThresholder.METHODS per level, or is null for binary input
+    public HierarchyCounter(ImagePlus imp, int[] channels, String[] thresholds, boolean darkBackground){
+        this.nLevels = channels.length;
+        this.calibration = imp.getCalibration();
+
+        ImageStack ims = imp.getImageStack();
+        ParallelThresholder thresholder = new ParallelThresholder();
+        masks = new BitMask[nLevels];
+        for(int l=0; l<nLevels; l++){
+            String method = thresholds==null ? ParallelThresholder.NONE : thresholds[l];
+            masks[l] = thresholder.toMask(ims.getProcessor(channels[l]), method, darkBackground);
+        }
+
+        rois = new Roi[nLevels][];
+        centres = new Point[nLevels][];
+        measurements = new ArrayList<>(Collections.nCopies(nLevels, (LinkedHashMap<String, double[]>) null));
+        areas = new double[nLevels][];
+
+        names = new String[nLevels];
+        plurals = new String[nLevels];
+        for(int l=0; l<nLevels; l++){
+            names[l] = getDefaultName(l);
+            plurals[l] = getDefaultPlural(l);
+        }
+    }
+
+    public static String getDefaultName(int level){
+        if(level==0) return "cell";
+        if(level==1) return "nucleus";
+        return "level "+(level+1)+" object";
+    }
+
+    public static String getDefaultPlural(int level){
+        if(level==0) return "cells";
+        if(level==1) return "nuclei";
+        return "level "+(level+1)+" objects";
+    }
+
+    public void setSaveDir(String saveDir){
+        this.saveDir = saveDir;
+    }
+
+    public void setMeasurements(boolean getArea, boolean getCentroid, boolean getPerimeter, boolean getEllipse,
+                                boolean getCirc, boolean getAR, boolean getRound, boolean getSolidity){
+        columns = NucleusCounter.getColumns(getArea, getCentroid, getPerimeter, getEllipse, getCirc, getAR, getRound, getSolidity);
+    }
+
+    // cuts touching objects of one level apart along watershed lines; call before getLevelRois
+    public void splitTouchingObjects(int level){
+        IJ.showStatus("Splitting touching "+plurals[level]+"...");
+        masks[level] = new WatershedSplitter().split(masks[level]);
+    }
+
+    public void getLevelRois(int level, double minSize, double maxSize, double minCirc, double maxCirc, boolean excludeEdge, boolean includeHoles){
+        IJ.showStatus("Finding "+plurals[level]+"...");
+        TableScraper ts = new TableScraper(masks[level].toByteProcessor(), calibration);
+        ts.setOptions(true, excludeEdge, includeHoles);
+        ts.setConstraints(minSize, maxSize, minCirc, maxCirc);
+        Object[] output = ts.getRois();
+
+        rois[level] = (Roi[]) output[0];
+        ResultsTable rt = (ResultsTable) output[1];
+        // a level with no objects in this image gives a table without columns
+        if(rois[level].length==0){
+            LinkedHashMap<String, double[]> empty = new LinkedHashMap<>();
+            for(String h:columns) empty.put(h, new double[0]);
+            measurements.set(level, empty);
+            areas[level] = new double[0];
+        }
+        else{
+            measurements.set(level, NucleusCounter.getArraysFromRt(columns, rt));
+            int areaColumn = rt.getColumnIndex("Area");
+            areas[level] = areaColumn<0 ? new double[0] : rt.getColumnAsDoubles(areaColumn);
+        }
+
+        centres[level] = new Point[rois[level].length];
+        for(int i=0; i<rois[level].length; i++) centres[level][i] = NucleusCounter.getRoiCentre(rois[level][i]);
+    }
+
+    public void buildTree(){
+        tree = new ContainmentTree(rois, centres);
+    }
+
+    public ContainmentTree getTree(){
+        return tree;
+    }
+
+    public void analyseAll(){
+        ArrayList<String> summaryColumns = new ArrayList<>();
+        for(String h:columns) if(!(h.equals("X") || h.equals("Y"))) summaryColumns.add(h);
+        String[] rolledColumns = summaryColumns.toArray(new String[0]);
+
+        rollUp = tree.rollUp(measurements, rolledColumns);
+
+        summaryTables = new ResultsTable[nLevels-1];
+        for(int level=0; level<nLevels-1; level++){
+            ResultsTable rt = getSummaryTable(level, rolledColumns);
+            summaryTables[level] = rt;
+            String title = level==0 ? "Summary Results" : "Summary Results - "+plurals[level];
+            rt.show(title);
+            if(saveDir!=null) rt.save(saveDir+File.separator+title+".csv");
+        }
+    }
+
+    private ResultsTable getSummaryTable(int level, String[] rolledColumns){
+        ResultsTable rt = new ResultsTable();
+        String name = capitalise(names[level]);
+
+        for(int i=0; i<rois[level].length; i++){
+            rt.incrementCounter();
+            rt.addValue(name+" name", rois[level][i].getName());
+            rt.addValue(name+" area", areas[level][i]);
+            rt.addValue(" ", "-->");
+            for(int deeper=level+1; deeper<nLevels; deeper++){
+                rt.addValue("N "+plurals[deeper]+" in "+names[level], rollUp.getCount(level, deeper, i));
+            }
+            // direct children keep the plain column names of the two-level summary, deeper levels are prefixed
+            for(int deeper=level+1; deeper<nLevels; deeper++){
+                String prefix = deeper==level+1 ? "" : plurals[deeper]+" ";
+                for(int c=0; c<rolledColumns.length; c++){
+                    rt.addValue(prefix+rolledColumns[c]+" mean", rollUp.getMean(level, deeper, c, i));
+                    rt.addValue(prefix+rolledColumns[c]+" std", rollUp.getStd(level, deeper, c, i));
+                }
+            }
+        }
+        return rt;
+    }
+
+    public ResultsTable getSummaryTable(int level){
+        return summaryTables[level];
+    }
+
+    private static String capitalise(String s){
+        return s.substring(0, 1).toUpperCase()+s.substring(1);
+    }
+}
@@ -0,0 +1,175 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.ImageRoi;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.LUT;
+
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.util.Arrays;
+
+// Shows every cell and nucleus as one LUT-coloured 8-bit image in the overlay, instead of one RoiManager
+// entry per object, so the display costs a byte per pixel however many objects there are. A nucleus gets
+// a brighter shade of the colour of the cell it was matched to; unmatched nuclei are white. Moving the
+// mouse shows the object under it in the status bar, and clicking selects its outline.
+public class LabelMapDisplay {
+
+    // map values 1..PALETTE are cells, NUCLEUS+1..NUCLEUS+PALETTE nuclei in their cell's colour
+    private static final int PALETTE = 127, NUCLEUS = 128;
+
+    private final ImagePlus imp;
+    private final Roi[] cellRois, nucleusRois;
+    private final int[] nucleusCell, nNuclei;
+    private final ByteProcessor map;
+    private final SpatialIndex cellIndex, nucleusIndex;
+
+    // cellNuclei[i] holds the indices of the nuclei matched to cell i
+    public LabelMapDisplay(ImagePlus imp, Roi[] cellRois, Roi[] nucleusRois, int[][] cellNuclei){
+        this.imp = imp;
+        this.cellRois = cellRois;
+        this.nucleusRois = nucleusRois;
+
+        nucleusCell = new int[nucleusRois.length];
+        Arrays.fill(nucleusCell, -1);
+        nNuclei = new int[cellRois.length];
+        for(int i=0; i<cellRois.length; i++){
+            nNuclei[i] = cellNuclei[i].length;
+            for(int j:cellNuclei[i]) nucleusCell[j] = i;
+        }
+
+        map = new ByteProcessor(imp.getWidth(), imp.getHeight());
+        for(int i=0; i<cellRois.length; i++){
+            map.setValue(getCellColour(i));
+            map.fill(cellRois[i]);
+        }
+        for(int j=0; j<nucleusRois.length; j++){
+            map.setValue(nucleusCell[j]<0 ? NUCLEUS : NUCLEUS+getCellColour(nucleusCell[j]));
+            map.fill(nucleusRois[j]);
+        }
+        map.setLut(getLut());
+
+        cellIndex = new SpatialIndex(getBounds(cellRois));
+        nucleusIndex = new SpatialIndex(getBounds(nucleusRois));
+    }
+
+    private static int getCellColour(int cell){
+        return 1+cell%PALETTE;
+    }
+
+    private static Rectangle[] getBounds(Roi[] rois){
+        Rectangle[] bounds = new Rectangle[rois.length];
+        for(int i=0; i<rois.length; i++) bounds[i] = rois[i].getBounds();
+        return bounds;
+    }
+
+    // hues a golden angle apart, so neighbouring cell numbers never get similar colours
+    private static LUT getLut(){
+        byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+        for(int i=0; i<PALETTE; i++){
+            float hue = (i*0.618034f)%1f;
+            setColour(r, g, b, 1+i, Color.getHSBColor(hue, 0.8f, 0.6f));
+            setColour(r, g, b, NUCLEUS+1+i, Color.getHSBColor(hue, 0.4f, 1f));
+        }
+        setColour(r, g, b, NUCLEUS, Color.white);
+        return new LUT(r, g, b);
+    }
+
+    private static void setColour(byte[] r, byte[] g, byte[] b, int i, Color c){
+        r[i] = (byte) c.getRed();
+        g[i] = (byte) c.getGreen();
+        b[i] = (byte) c.getBlue();
+    }
+
+    public void show(double opacity){
+        ImageRoi roi = new ImageRoi(0, 0, map);
+        roi.setZeroTransparent(true);
+        roi.setOpacity(opacity);
+        roi.setName("Label map");
+        Overlay overlay = new Overlay(roi);
+        imp.setOverlay(overlay);
+
+        ImageCanvas canvas = imp.getCanvas();
+        if(canvas==null) return;
+        // a second run on the same image replaces the old lookup
+        for(MouseMotionListener l:canvas.getMouseMotionListeners()){
+            if(l instanceof Lookup) canvas.removeMouseMotionListener(l);
+        }
+        for(MouseListener l:canvas.getMouseListeners()){
+            if(l instanceof Lookup) canvas.removeMouseListener(l);
+        }
+        Lookup lookup = new Lookup(canvas);
+        canvas.addMouseMotionListener(lookup);
+        canvas.addMouseListener(lookup);
+    }
+
+    // the map says whether a cell or a nucleus is under (x, y); the spatial index finds which one
+    public int getCellAt(int x, int y){
+        if(!inside(x, y) || map.get(x, y)==0) return -1;
+        return find(cellIndex, cellRois, x, y);
+    }
+
+    public int getNucleusAt(int x, int y){
+        if(!inside(x, y) || map.get(x, y)<NUCLEUS) return -1;
+        return find(nucleusIndex, nucleusRois, x, y);
+    }
+
+    private boolean inside(int x, int y){
+        return x>=0 && y>=0 && x<map.getWidth() && y<map.getHeight();
+    }
+
+    private static int find(SpatialIndex index, Roi[] rois, int x, int y){
+        int[] found = {-1};
+        index.query(x, y, i -> {
+            if(!rois[i].contains(x, y)) return true;
+            found[0] = i;
+            return false;
+        });
+        return found[0];
+    }
+
+    public ByteProcessor getMap(){
+        return map;
+    }
+
+    private class Lookup extends MouseAdapter {
+        private final ImageCanvas canvas;
+
+        Lookup(ImageCanvas canvas){
+            this.canvas = canvas;
+        }
+
+        private Roi getObjectAt(MouseEvent e, boolean showStatus){
+            int x = canvas.offScreenX(e.getX()), y = canvas.offScreenY(e.getY());
+            int nucleus = getNucleusAt(x, y);
+            if(nucleus>=0){
+                int cell = nucleusCell[nucleus];
+                if(showStatus) IJ.showStatus("Nucleus "+nucleusRois[nucleus].getName()+
+                        (cell<0 ? " (not in a cell)" : " in cell "+cellRois[cell].getName()));
+                return nucleusRois[nucleus];
+            }
+            int cell = getCellAt(x, y);
+            if(cell>=0){
+                if(showStatus) IJ.showStatus("Cell "+cellRois[cell].getName()+" ("+nNuclei[cell]+" nuclei)");
+                return cellRois[cell];
+            }
+            return null;
+        }
+
+        @Override
+        public void mouseMoved(MouseEvent e){
+            getObjectAt(e, true);
+        }
+
+        @Override
+        public void mouseClicked(MouseEvent e){
+            Roi roi = getObjectAt(e, false);
+            if(roi!=null) imp.setRoi((Roi) roi.clone());
+        }
+    }
+}
@@ -0,0 +1,420 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.DialogListener;
+import ij.gui.GenericDialog;
+import ij.gui.ImageCanvas;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+import ij.util.Tools;
+
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/*
+ Live preview for the analyze particles dialogs. Every channel is thresholded and labelled once, with no
+ size or circularity limits, in the background (again only if "Include holes" or "Split touching" change).
+ After that a change in the dialog just re-applies the limits to the stored area and circularity of each
+ object, and matches children to parents (by centre, as matchNucleiToCells_v2 does) for the objects in the
+ visible part of the image, so the outlines and counts follow the fields as they are typed.
+ */
+public class LivePreview implements DialogListener {
+
+    // beyond this many objects in view the outlines take longer to paint than to compute, so only counts are shown
+    private static final int MAX_OUTLINES = 5000;
+    private static final Color PASS = Color.yellow, REJECT = Color.red, PARTNER = Color.cyan;
+
+    private final ImagePlus imp;
+    private final boolean isTimeLapse;
+    private final String[] thresholdMethods;
+    private final boolean darkBackground;
+    private final Overlay originalOverlay;
+
+    // labels of each channel, keyed by channel, frame, include holes and split as built by getKey, and the
+    // candidate parents for each pair of labels
+    private final ConcurrentHashMap<String, Object> cache = new ConcurrentHashMap<>();
+    private final HashSet<String> building = new HashSet<>();
+    private final ArrayList<Thread> threads = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    // size and circularity limits per channel: those of the dialog being shown, and the last ones set for the others
+    private final double[] minSize, maxSize, minCirc, maxCirc;
+    private final boolean[] excludeEdge, includeHoles, split;
+
+    private GenericDialog gd;
+    private Label message;
+    private Checkbox enabled;
+    private int channel, parentChannel, childChannel;
+    private int parentLevel;
+    private final ViewListener viewListener = new ViewListener();
+
+    private static class Labels {
+        Roi[] rois;
+        double[] area, circ;
+        Rectangle[] bounds;
+        Point[] centres;
+        boolean[] onEdge;
+        SpatialIndex index;
+    }
+
+    // every parent whose Roi contains the centre of a child, tightest first, which doesn't depend on the limits:
+    // the child belongs to the first of them that passes, as in ContainmentTree
+    private static class Candidates {
+        int[] start, parents;
+    }
+
+    public LivePreview(ImagePlus imp, boolean isTimeLapse, String[] thresholdMethods, boolean darkBackground){
+        this.imp = imp;
+        this.isTimeLapse = isTimeLapse;
+        this.thresholdMethods = thresholdMethods;
+        this.darkBackground = darkBackground;
+        this.originalOverlay = imp.getOverlay();
+
+        int nChannels = thresholdMethods.length;
+        minSize = new double[nChannels];
+        maxSize = new double[nChannels];
+        minCirc = new double[nChannels];
+        maxCirc = new double[nChannels];
+        excludeEdge = new boolean[nChannels];
+        includeHoles = new boolean[nChannels];
+        split = new boolean[nChannels];
+    }
+
+    // c is 0-based, like the settings arrays of NucleusCounterGUI_
+    public void setFilter(int c, double minSize, double maxSize, double minCirc, double maxCirc,
+                          boolean excludeEdge, boolean includeHoles, boolean split){
+        this.minSize[c] = minSize;
+        this.maxSize[c] = maxSize;
+        this.minCirc[c] = minCirc;
+        this.maxCirc[c] = maxCirc;
+        this.excludeEdge[c] = excludeEdge;
+        this.includeHoles[c] = includeHoles;
+        this.split[c] = split;
+    }
+
+    /*
+     Previews the dialog for channel (1-based), which is either parentChannel or childChannel; parentLevel
+     names the objects (0 for cells, see HierarchyCounter.getDefaultName). The dialog
+     must hold the fields of NucleusCounterGUI_.setupAnalyzeDialog followed by a message, which is used for
+     the counts, and a last checkbox that switches the preview on and off.
+     */
+    public void attach(GenericDialog gd, int channel, int parentChannel, int childChannel, int parentLevel){
+        this.gd = gd;
+        this.channel = channel;
+        this.parentChannel = parentChannel;
+        this.childChannel = childChannel;
+        this.parentLevel = parentLevel;
+        this.message = (Label) gd.getMessage();
+        Vector<?> checkboxes = gd.getCheckboxes();
+        this.enabled = (Checkbox) checkboxes.get(checkboxes.size()-1);
+        gd.addDialogListener(this);
+
+        ImageCanvas canvas = imp.getCanvas();
+        if(canvas!=null){
+            canvas.addMouseListener(viewListener);
+            canvas.addMouseWheelListener(viewListener);
+        }
+        refresh();
+    }
+
+    // puts the image back as it was; the labels are kept for the next dialog
+    public void detach(){
+        ImageCanvas canvas = imp.getCanvas();
+        if(canvas!=null){
+            canvas.removeMouseListener(viewListener);
+            canvas.removeMouseWheelListener(viewListener);
+        }
+        imp.setOverlay(originalOverlay);
+        gd = null;
+    }
+
+    // once the dialogs are done: labelling still under way is abandoned and waited for, so it can't overlap
+    // the analysis, and the labels are let go
+    public void close(){
+        detach();
+        closed = true;
+        ArrayList<Thread> running;
+        synchronized(building){
+            running = new ArrayList<>(threads);
+        }
+        for(Thread thread:running){
+            try{
+                thread.join();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        cache.clear();
+    }
+
+    @Override
+    public boolean dialogItemChanged(GenericDialog gd, AWTEvent e){
+        // the fields are read directly, so the getNext... counters stay untouched for the caller
+        Vector<?> numbers = gd.getNumericFields(), checkboxes = gd.getCheckboxes();
+        double[] values = new double[4];
+        for(int i=0; i<4; i++){
+            values[i] = Tools.parseDouble(((TextField) numbers.get(i)).getText());
+            if(Double.isNaN(values[i])) return false;
+        }
+        int c = channel-1;
+        setFilter(c, values[0], values[1], values[2], values[3], ((Checkbox) checkboxes.get(0)).getState(),
+                ((Checkbox) checkboxes.get(1)).getState(), ((Checkbox) checkboxes.get(2)).getState());
+        refresh();
+        return true;
+    }
+
+    private void refresh(){
+        if(gd==null) return;
+        if(!enabled.getState()){
+            imp.setOverlay(originalOverlay);
+            setMessage(" ");
+            return;
+        }
+
+        Labels parents = getLabels(parentChannel), children = getLabels(childChannel);
+        Candidates candidates = parents==null || children==null ? null :
+                (Candidates) getCached(getKey(parentChannel-1)+"|"+getKey(childChannel-1), () -> getCandidates(parents, children));
+        if(candidates==null){
+            setMessage("Labelling objects for the preview...");
+            return;
+        }
+
+        Rectangle view = imp.getCanvas()!=null ? imp.getCanvas().getSrcRect() : new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+        Overlay overlay = new Overlay();
+        String counts = update(parents, children, candidates, view, overlay);
+        imp.setOverlay(overlay);
+        setMessage(counts);
+    }
+
+    // the label only grows, so typing doesn't make the dialog jump around
+    private void setMessage(String text){
+        message.setText(text);
+        Dimension size = message.getPreferredSize();
+        if(size.width>message.getWidth()){
+            message.setSize(size);
+            gd.pack();
+        }
+    }
+
+    // re-applies the limits and fills the overlay with the outlines in view; returns the counts
+    private String update(Labels parents, Labels children, Candidates candidates, Rectangle view, Overlay overlay){
+        boolean isParent = channel==parentChannel;
+        Labels tuned = isParent ? parents : children, partner = isParent ? children : parents;
+        int c = channel-1, p = (isParent ? childChannel : parentChannel)-1;
+        int pc = parentChannel-1, cc = childChannel-1;
+        String tunedName = HierarchyCounter.getDefaultPlural(isParent ? parentLevel : parentLevel+1);
+
+        int nPass = 0;
+        for(int i=0; i<tuned.rois.length; i++) if(passes(tuned, i, c)) nPass++;
+
+        // plain index arrays rather than lists, the whole image can be in view
+        int[] tunedInView = new int[tuned.rois.length], partnerInView = new int[partner.rois.length];
+        int nTunedInView = getInView(tuned, view, -1, tunedInView);
+        int nPartnerInView = getInView(partner, view, p, partnerInView);
+
+        // only the children that can belong to a passing parent in view are matched
+        int[] parentsInView = isParent ? tunedInView : partnerInView;
+        int nParentsInView = 0;
+        Rectangle reach = new Rectangle(view);
+        for(int k=0, n=isParent ? nTunedInView : nPartnerInView; k<n; k++){
+            int i = parentsInView[k];
+            if(!passes(parents, i, pc)) continue;
+            parentsInView[nParentsInView++] = i;
+            reach.add(parents.bounds[i]);
+        }
+        int[] nChildren = new int[parents.rois.length];
+        query(children, reach, j -> {
+            if(!passes(children, j, cc)) return true;
+            for(int k=candidates.start[j]; k<candidates.start[j+1]; k++){
+                int parent = candidates.parents[k];
+                if(passes(parents, parent, pc)){
+                    nChildren[parent]++;
+                    break;
+                }
+            }
+            return true;
+        });
+        int nMatched = 0, nEmpty = 0;
+        for(int k=0; k<nParentsInView; k++){
+            int i = parentsInView[k];
+            nMatched += nChildren[i];
+            if(nChildren[i]==0) nEmpty++;
+        }
+
+        // parentsInView reused tunedInView for a parent, so it's queried again
+        if(isParent) nTunedInView = getInView(tuned, view, -1, tunedInView);
+        int nPassInView = 0;
+        boolean outlines = nTunedInView+nPartnerInView<=MAX_OUTLINES;
+        for(int k=0; k<nTunedInView; k++){
+            int i = tunedInView[k];
+            boolean pass = passes(tuned, i, c);
+            if(pass) nPassInView++;
+            if(!outlines) continue;
+            tuned.rois[i].setStrokeColor(pass ? PASS : REJECT);
+            overlay.add(tuned.rois[i]);
+        }
+        if(outlines){
+            for(int k=0; k<nPartnerInView; k++){
+                Roi roi = partner.rois[partnerInView[k]];
+                roi.setStrokeColor(PARTNER);
+                overlay.add(roi);
+            }
+        }
+
+        return nPass+" of "+tuned.rois.length+" "+tunedName+" pass, "+nPassInView+" of "+nTunedInView+" in view | "+
+                IJ.d2s(nParentsInView==0 ? 0 : nMatched/(double) nParentsInView, 2)+" "+HierarchyCounter.getDefaultPlural(parentLevel+1)+
+                " per "+HierarchyCounter.getDefaultName(parentLevel)+" in view, "+nEmpty+" without"+(outlines ? "" : " (zoom in for outlines)");
+    }
+
+    // objects of l in view, only the passing ones unless c<0; returns how many were put in out
+    private int getInView(Labels l, Rectangle view, int c, int[] out){
+        int[] n = {0};
+        query(l, view, i -> {
+            if(c<0 || passes(l, i, c)) out[n[0]++] = i;
+            return true;
+        });
+        return n[0];
+    }
+
+    // zoomed out to the whole image a plain loop is quicker than going through the bins
+    private void query(Labels l, Rectangle rect, SpatialIndex.Visitor visitor){
+        if(!rect.contains(new Rectangle(0, 0, imp.getWidth(), imp.getHeight()))) l.index.query(rect, visitor);
+        else for(int i=0; i<l.rois.length && visitor.visit(i); i++);
+    }
+
+    private boolean passes(Labels l, int i, int c){
+        return l.area[i]>=minSize[c] && l.area[i]<=maxSize[c] && l.circ[i]>=minCirc[c] && l.circ[i]<=maxCirc[c] &&
+                !(excludeEdge[c] && l.onEdge[i]);
+    }
+
+    private String getKey(int c){
+        return c+":"+(isTimeLapse ? imp.getFrame() : 1)+":"+includeHoles[c]+":"+split[c];
+    }
+
+    // the labels for the current settings of channel, or null while they are built in the background
+    private Labels getLabels(int channel){
+        int c = channel-1;
+        ImageProcessor ip = imp.getImageStack().getProcessor(isTimeLapse ? imp.getStackIndex(channel, 1, imp.getFrame()) : channel);
+        boolean holes = includeHoles[c], splitTouching = split[c];
+        return (Labels) getCached(getKey(c), () -> label(ip, thresholdMethods[c], holes, splitTouching));
+    }
+
+    // builds what isn't cached yet on a background thread and refreshes the preview once it's there
+    private Object getCached(String key, Supplier<Object> builder){
+        Object cached = cache.get(key);
+        if(cached!=null) return cached;
+
+        Thread thread;
+        synchronized(building){
+            if(closed || !building.add(key)) return null;
+            thread = new Thread(() -> {
+                String[] error = new String[1];
+                try{
+                    Object built = builder.get();
+                    if(built!=null && !closed) cache.put(key, built);
+                }
+                catch(RuntimeException e){
+                    IJ.log("WARN: the preview could not be built: "+e);
+                    error[0] = "Preview failed: "+e.getMessage();
+                }
+                finally{
+                    synchronized(building){
+                        building.remove(key);
+                        threads.remove(Thread.currentThread());
+                    }
+                    // a failure is shown rather than refreshed, which would only start the same work again
+                    if(!closed) EventQueue.invokeLater(error[0]==null ? this::refresh : () -> setMessage(error[0]));
+                }
+            }, "LivePreview-"+key);
+            threads.add(thread);
+        }
+        thread.setDaemon(true);
+        thread.start();
+        return null;
+    }
+
+    private static Candidates getCandidates(Labels parents, Labels children){
+        int n = children.rois.length;
+        Candidates candidates = new Candidates();
+        candidates.start = new int[n+1];
+        int[] found = new int[16];
+        int nFound = 0;
+        for(int j=0; j<n; j++){
+            Point centre = children.centres[j];
+            ArrayList<Integer> containing = new ArrayList<>(1);
+            parents.index.query(centre.x, centre.y, i -> {
+                if(parents.rois[i].contains(centre.x, centre.y)) containing.add(i);
+                return true;
+            });
+            containing.sort((a, b) -> Long.compare(area(parents.bounds[a]), area(parents.bounds[b])));
+            if(nFound+containing.size()>found.length) found = Arrays.copyOf(found, Math.max(2*found.length, nFound+containing.size()));
+            for(int i:containing) found[nFound++] = i;
+            candidates.start[j+1] = nFound;
+        }
+        candidates.parents = Arrays.copyOf(found, nFound);
+        return candidates;
+    }
+
+    private static long area(Rectangle r){
+        return (long) r.width*r.height;
+    }
+
+    // the same masks as NucleusCounter, analysed with no limits; areas and circularities are in pixels, as in the
+    // dialog; null if the preview was closed in the meantime
+    private Labels label(ImageProcessor ip, String method, boolean holes, boolean splitTouching){
+        BitMask mask = new ParallelThresholder().toMask(ip, method, darkBackground);
+        if(closed) return null;
+        if(splitTouching) mask = new WatershedSplitter().split(mask);
+        if(closed) return null;
+
+        TableScraper ts = new TableScraper(mask.toByteProcessor(), new Calibration());
+        ts.setOptions(true, false, holes);
+        ts.setConstraints(0, Double.POSITIVE_INFINITY, 0, 1);
+        Object[] out = ts.getRois();
+
+        Labels l = new Labels();
+        l.rois = (Roi[]) out[0];
+        int n = l.rois.length;
+        // a channel with no particles gives a table without columns
+        ResultsTable rt = (ResultsTable) out[1];
+        l.area = n==0 ? new double[0] : rt.getColumnAsDoubles(rt.getColumnIndex("Area"));
+        l.circ = n==0 ? new double[0] : rt.getColumnAsDoubles(rt.getColumnIndex("Circ."));
+
+        Rectangle[] bounds = l.bounds = new Rectangle[n];
+        l.centres = new Point[n];
+        l.onEdge = new boolean[n];
+        for(int i=0; i<n; i++){
+            Rectangle b = bounds[i] = l.rois[i].getBounds();
+            l.centres[i] = NucleusCounter.getRoiCentre(l.rois[i]);
+            // the test ParticleAnalyzer uses for "Exclude edge particles"
+            l.onEdge[i] = b.x==0 || b.y==0 || b.x+b.width==ip.getWidth() || b.y+b.height==ip.getHeight();
+        }
+        l.index = new SpatialIndex(bounds);
+        return l;
+    }
+
+    // panning and zooming change the part of the image in view
+    private class ViewListener extends MouseAdapter {
+        @Override
+        public void mouseReleased(MouseEvent e){
+            refresh();
+        }
+
+        @Override
+        public void mouseWheelMoved(MouseWheelEvent e){
+            EventQueue.invokeLater(LivePreview.this::refresh);
+        }
+    }
+}
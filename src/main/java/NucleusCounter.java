@@ -12,8 +12,12 @@ import ij.process.ImageProcessor;
 
 import java.awt.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -24,9 +28,8 @@ import static org.apache.commons.math3.stat.StatUtils.variance;
 public class NucleusCounter {
 
     private int cellChannel=1, nucleusChannel=2;
-    private ImageProcessor ipCell, ipNuclei;
+    private BitMask maskCell, maskNuclei;
     private ImagePlus imp;
-    private ImageStack ims;
     private RoiManager rm;
     private ArrayList<String> columns;
     private int nMeasurements;
@@ -41,9 +44,21 @@ public class NucleusCounter {
     private LinkedHashMap<String, double[]> summaryMeanMap, summaryStdMap;
     private String saveDir = null, roiDir = null, resultsDir = null, cropsDir = null;
     private boolean saveRois = false, saveResults = false, saveCrops = false;
+    private boolean showResults = true, saveStore = false, useRoiManager = false, checkpointing = true;
+    private String checkpointSettings = "";
+    private ResultsTable summaryTable;
+    private DatasetStatistics statistics;
+    private long nucleusStripMemory = 0;
+    private OffHeapNuclei offHeapNuclei;
+    private CompressedChildIndex cellNucleusIndex;
     private double[] minSize = new double[2], maxSize = new double[2], minCirc = new double[2], maxCirc = new double[2];
     private boolean[] excludeEdges = new boolean[2], includeHoles = new boolean[2];
 
+    // heap per pixel of a strip while its nuclei are traced (the strip, ParticleAnalyzer's copy and buffers) and
+    // per nucleus until it is spilled (Roi and results row); the halo around a strip holds the rest of its nuclei
+    private static final int STRIP_BYTES_PER_PIXEL = 16, STRIP_BYTES_PER_NUCLEUS = 2048;
+    private static final int STRIP_HALO = 128, MIN_STRIP_HEIGHT = 64;
+
     private double[] nNucleiPerCell;
     private double[] nucleusAreaPerCell;
     private double[] nucleusAreaStdPerCell;
@@ -53,28 +68,43 @@ public class NucleusCounter {
     }
 
     public NucleusCounter(ImagePlus imp, int cellChannel, int nucleusChannel){
+        this(imp, cellChannel, nucleusChannel, ParallelThresholder.NONE, ParallelThresholder.NONE, true);
+    }
+
+    // raw channels are thresholded straight into the masks with one of ParallelThresholder.METHODS
+    public NucleusCounter(ImagePlus imp, int cellChannel, int nucleusChannel,
+                          String cellThreshold, String nucleusThreshold, boolean darkBackground){
         this.imp = imp;
-        this.ims = imp.getImageStack();
-        this.ipCell = ims.getProcessor(cellChannel);
-        this.ipNuclei = ims.getProcessor(nucleusChannel);
+        ImageStack ims = imp.getImageStack();
+        ParallelThresholder thresholder = new ParallelThresholder();
+        this.maskCell = thresholder.toMask(ims.getProcessor(cellChannel), cellThreshold, darkBackground);
+        this.maskNuclei = thresholder.toMask(ims.getProcessor(nucleusChannel), nucleusThreshold, darkBackground);
         this.calibration = imp.getCalibration();
     }
 
     public NucleusCounter(ImageProcessor ipCell, ImageProcessor ipNuclei, Calibration calibration){
-        this.ipCell = ipCell;
-        this.ipNuclei = ipNuclei;
+        this.maskCell = BitMask.fromProcessor(ipCell);
+        this.maskNuclei = BitMask.fromProcessor(ipNuclei);
+        this.calibration = calibration;
+    }
+
+    public NucleusCounter(BitMask maskCell, BitMask maskNuclei, Calibration calibration){
+        this.maskCell = maskCell;
+        this.maskNuclei = maskNuclei;
         this.calibration = calibration;
     }
 
     private void loadTestData(){
         ImagePlus img1 = IJ.openImage("C:/Users/sianc/Code/NucleusCounter/src/main/resources/Cell.tif");
-        ipCell = img1.getProcessor();
+        ImageProcessor ipCell = img1.getProcessor();
         ImagePlus img2 = IJ.openImage("C:/Users/sianc/Code/NucleusCounter/src/main/resources/Nuclei.tif");
-        ipNuclei = img2.getProcessor();
+        ImageProcessor ipNuclei = img2.getProcessor();
+        maskCell = BitMask.fromProcessor(ipCell);
+        maskNuclei = BitMask.fromProcessor(ipNuclei);
 
         this.calibration = img1.getCalibration();
 
-        ims = new ImageStack(ipCell.getWidth(), ipCell.getHeight());
+        ImageStack ims = new ImageStack(ipCell.getWidth(), ipCell.getHeight());
         ims.addSlice(ipCell);
         ims.addSlice(ipNuclei);
 
@@ -82,6 +112,13 @@ public class NucleusCounter {
         imp.show();
     }
 
+    // cuts touching objects apart along watershed lines; call before getCellRois/getNucleusRois
+    public void splitTouchingObjects(boolean splitCells, boolean splitNuclei){
+        WatershedSplitter splitter = new WatershedSplitter();
+        if(splitCells) maskCell = splitter.split(maskCell);
+        if(splitNuclei) maskNuclei = splitter.split(maskNuclei);
+    }
+
     public void setSavePaths(String saveDir, String roiDir, String resultsDir, String cropsDir){
         this.saveDir = saveDir;
         this.resultsDir = resultsDir;
@@ -93,8 +130,15 @@ public class NucleusCounter {
         if(this.cropsDir!=null) this.saveCrops = true;
     }
 
+    // the image a counter made from a store or checkpoint shows its objects on
+    void setImage(ImagePlus imp, int cellChannel, int nucleusChannel){
+        this.imp = imp;
+        this.cellChannel = cellChannel;
+        this.nucleusChannel = nucleusChannel;
+    }
+
     public void getNucleusRois() {
-        nucleusRois = getRois(ipNuclei);
+        nucleusRois = getRois(maskNuclei.toByteProcessor());
         nucleusRoisAndCentres = new LinkedHashMap<>();
         for(Roi r:nucleusRois){
             nucleusRoisAndCentres.put(r, getRoiCentre(r));
@@ -102,7 +146,7 @@ public class NucleusCounter {
     }
 
     public void getCellRois() {
-        cellRois = getRois(ipCell);
+        cellRois = getRois(maskCell.toByteProcessor());
         nNucleiPerCell = new double[cellRois.length];
         nucleusAreaPerCell = new double[cellRois.length];
         nucleusAreaStdPerCell = new double[cellRois.length];
@@ -139,8 +183,13 @@ public class NucleusCounter {
         return rois;
     }
 
-    public void getNucleusRois(double minSize, double maxSize, double minCirc, double maxCirc, boolean excludeEdge, boolean includeHoles){
-        TableScraper ts = new TableScraper(ipNuclei, calibration);
+    public void getNucleusRois(double minSize, double maxSize, double minCirc, double maxCirc, boolean excludeEdge, boolean includeHoles) throws IOException {
+        closeOffHeapNuclei();
+        if(nucleusStripMemory>0){
+            getNucleusRoisInStrips(minSize, maxSize, minCirc, maxCirc, excludeEdge, includeHoles);
+            return;
+        }
+        TableScraper ts = new TableScraper(maskNuclei.toByteProcessor(), calibration);
         ts.setOptions(true, excludeEdge, includeHoles);
         ts.setConstraints(minSize, maxSize, minCirc, maxCirc);
         Object[] nucleiOutput = ts.getRois();
@@ -157,8 +206,75 @@ public class NucleusCounter {
         nucleusMeasurements = getArraysFromRt(columns, rt);
     }
 
+    /*
+     Nuclei spilled to disk, found in full-width strips of the mask and spilled to OffHeapNuclei as
+     each strip is done. A strip is traced with a halo above and below it and keeps the particles whose first
+     pixel in raster order is in the strip, as tiles do in ShardWorker, so numbering, names and measurements
+     are those of a whole-image run. The strip height follows from nucleusStripMemory and shrinks if a strip
+     turns out crowded.
+     */
+    private void getNucleusRoisInStrips(double minSize, double maxSize, double minCirc, double maxCirc,
+                                        boolean excludeEdge, boolean includeHoles) throws IOException {
+        int width = maskNuclei.getWidth(), height = maskNuclei.getHeight();
+        nucleusRois = null;
+        nucleusMeasurements = null;
+        nucleusRoisAndCentres = null;
+        offHeapNuclei = new OffHeapNuclei(nMeasurements);
+
+        long stripHeight = nucleusStripMemory/((long) width*STRIP_BYTES_PER_PIXEL)-2*STRIP_HALO;
+        if(stripHeight<MIN_STRIP_HEIGHT){
+            IJ.log("WARN: "+nucleusStripMemory/(1<<20)+" MB of strip memory is too little for an image "+width+" pixels wide, using strips of "+MIN_STRIP_HEIGHT+" rows");
+            stripHeight = MIN_STRIP_HEIGHT;
+        }
+
+        int yColumn = columns.indexOf("Y"), number = 0, nClipped = 0;
+        String firstClipped = null;
+        double[] values = new double[nMeasurements];
+        for(int y=0; y<height; ){
+            Rectangle core = new Rectangle(0, y, width, (int) Math.min(stripHeight, height-y));
+            int top = Math.max(0, y-STRIP_HALO);
+            Rectangle region = new Rectangle(0, top, width, (int) Math.min(y-top+stripHeight+STRIP_HALO, height-top));
+            IJ.showStatus("Finding nuclei in rows "+y+" to "+(y+core.height)+" of "+height);
+
+            TableScraper ts = new TableScraper(maskNuclei.crop(region).toByteProcessor(), calibration);
+            ts.setOptions(true, false, includeHoles);
+            ts.setConstraints(minSize, maxSize, minCirc, maxCirc);
+            Object[] nucleiOutput = ts.getRois();
+            Roi[] rois = (Roi[]) nucleiOutput[0];
+            // a blank strip has an empty results table without any columns
+            LinkedHashMap<String, double[]> measurements = rois.length==0 ? null : getArraysFromRt(columns, (ResultsTable) nucleiOutput[1]);
+
+            for(int k=0; k<rois.length; k++){
+                Roi r = rois[k];
+                if(!core.contains(ShardWorker.getRasterKey(r, region))) continue;
+                if(excludeEdge && ShardWorker.touchesImageEdge(r, region, width, height)) continue;
+                boolean clipped = ShardWorker.touchesRegionEdge(r, region, width, height);
+
+                Rectangle b = r.getBounds();
+                r.setLocation(b.x, region.y+b.y);
+                r.setName(TableScraper.getRoiLabel(++number, region.y+b.y+b.height/2, height));
+                if(clipped && nClipped++==0) firstClipped = r.getName()+" at ("+b.x+", "+(region.y+b.y)+")";
+                for(int c=0; c<nMeasurements; c++) values[c] = measurements.get(columns.get(c))[k];
+                if(yColumn>=0) values[yColumn] += region.y*calibration.pixelHeight;
+                offHeapNuclei.add(r, getRoiCentre(r), values);
+            }
+
+            y += core.height;
+            long used = (long) width*region.height*STRIP_BYTES_PER_PIXEL+(long) rois.length*STRIP_BYTES_PER_NUCLEUS;
+            if(used>nucleusStripMemory) stripHeight = Math.max(MIN_STRIP_HEIGHT, stripHeight*nucleusStripMemory/used);
+        }
+
+        offHeapNuclei.finish();
+        nNucleusRois = offHeapNuclei.size();
+        if(nClipped>0){
+            IJ.log("WARN: "+nClipped+" of "+nNucleusRois+" nuclei reach more than "+STRIP_HALO+" rows beyond their strip and were cut, "+
+                    "so their outlines and measurements are incomplete (the first is "+firstClipped+")");
+        }
+    }
+
     public void getCellRois(double minSize, double maxSize, double minCirc, double maxCirc, boolean excludeEdge, boolean includeHoles){
-        TableScraper ts = new TableScraper(ipCell, calibration);
+        // ParticleAnalyzer only traces 8-bit images, so the mask is expanded to one byte per pixel while it runs
+        TableScraper ts = new TableScraper(maskCell.toByteProcessor(), calibration);
         ts.setOptions(true, excludeEdge, includeHoles);
         ts.setConstraints(minSize, maxSize, minCirc, maxCirc);
         Object[] cellOutput = ts.getRois();
@@ -172,7 +288,7 @@ public class NucleusCounter {
         for(int i=0; i<nCellRois; i++) cellRoisNames[i] = cellRois[i].getName();
     }
 
-    private LinkedHashMap<String, double[]> getArraysFromRt(ArrayList<String> headers, ResultsTable rt){
+    static LinkedHashMap<String, double[]> getArraysFromRt(ArrayList<String> headers, ResultsTable rt){
         LinkedHashMap<String, double[]> out = new LinkedHashMap<>();
         for(String h:headers){
             int i = rt.getColumnIndex(h);
@@ -183,9 +299,200 @@ public class NucleusCounter {
         return out;
     }
 
+    public void setShowResults(boolean showResults){
+        this.showResults = showResults;
+    }
+
+    // the RoiManager gets slow with many thousands of objects, so by default they are shown as a label map overlay
+    public void setUseRoiManager(boolean useRoiManager){
+        this.useRoiManager = useRoiManager;
+    }
+
+    // while exporting, progress is checkpointed into the save directory and a rerun skips cells whose
+    // files are already complete; on by default whenever something is saved
+    public void setCheckpointing(boolean checkpointing){
+        this.checkpointing = checkpointing;
+    }
+
+    // recorded in the checkpoint with the segmentation, so a caller can tell before resuming whether it was made
+    // with the settings it would use now
+    public void setCheckpointSettings(String settings){
+        this.checkpointSettings = settings;
+    }
+
+    // the segmentation recorded by an earlier, interrupted run into saveDir, or null if there is none
+    static NucleusCounter fromCheckpoint(String saveDir) throws IOException {
+        Checkpoint checkpoint = new Checkpoint(saveDir);
+        if(!checkpoint.hasSegmentation()) return null;
+        ResultStore store = checkpoint.loadSegmentation();
+        BitSet all = new BitSet(store.getNCells());
+        all.set(0, store.getNCells());
+        return fromStore(store, all);
+    }
+
+    // writes a ResultStore into the save directory, so cells can be filtered and re-exported later
+    public void setSaveStore(boolean saveStore){
+        this.saveStore = saveStore;
+    }
+
+    // above zero, the nuclei are traced strip by strip and their outlines, centres and measurements are spilled to
+    // disk after each strip; bytes sizes the strips, it is not a bound on the heap: both masks, the cell Rois and
+    // the cell measurements stay on the heap as usual. The result store, checkpoints and the display of objects
+    // are not available
+    public void setNucleusStripMemory(long bytes){
+        this.nucleusStripMemory = bytes;
+    }
+
+    private void closeOffHeapNuclei() throws IOException {
+        if(offHeapNuclei==null) return;
+        offHeapNuclei.close();
+        offHeapNuclei = null;
+    }
+
+    // a counter over the selected cells of a stored run, ready for analyseAllRois_v2 to re-export them
+    static NucleusCounter fromStore(ResultStore store, BitSet cells){
+        NucleusCounter nc = new NucleusCounter(store.getMaskCell(), store.getMaskNuclei(), store.getCalibration());
+        nc.columns = store.getColumns();
+        nc.nMeasurements = nc.columns.size();
+        nc.summaryMeanMap = new LinkedHashMap<>();
+        nc.summaryStdMap = new LinkedHashMap<>();
+
+        nc.nucleusRois = store.getNucleusRois();
+        nc.nNucleusRois = nc.nucleusRois.length;
+        nc.nucleusMeasurements = store.getNucleusMeasurements();
+
+        nc.cellRois = store.getCellRois();
+        nc.nCellRois = nc.cellRois.length;
+        nc.cellMeasurements = store.getCellMeasurements();
+        boolean[] keep = new boolean[nc.nCellRois];
+        for(int i=cells.nextSetBit(0); i>=0; i=cells.nextSetBit(i+1)) keep[i] = true;
+        nc.keepCells(keep);
+
+        nc.cellNucleusMap_v2 = new LinkedHashMap<>();
+        for(int i=cells.nextSetBit(0), j=0; i>=0; i=cells.nextSetBit(i+1), j++) nc.cellNucleusMap_v2.put(j, store.getNuclei(i));
+        return nc;
+    }
+
+    // summary is null for a checkpoint, which is written before any cell has been analysed
+    ResultStore getResultStore(String title, ResultsTable summary, Roi[] nucleusGeometry){
+        int[][] childArrays = ResultStore.getChildArrays(cellNucleusMap_v2, nCellRois);
+        return new ResultStore(title, calibration, columns, cellRoisNames,
+                summary==null ? new LinkedHashMap<>() : ResultStore.getSummaryColumns(summary), cellMeasurements, nucleusMeasurements,
+                cellRois, nucleusGeometry, childArrays[0], childArrays[1], maskCell, maskNuclei);
+    }
+
+    public ResultsTable getSummaryTable(){
+        return summaryTable;
+    }
+
+    // whole-image statistics of every measurement, filled by analyseAllRois_v2
+    public DatasetStatistics getStatistics(){
+        return statistics;
+    }
+
+    public ArrayList<String> getColumns(){
+        return columns;
+    }
+
+    Roi[] getCellRoiArray(){
+        return cellRois;
+    }
+
+    BitMask getCellMask(){
+        return maskCell;
+    }
+
+    Roi[] getNucleusRoiArray(){
+        return nucleusRois;
+    }
+
+    LinkedHashMap<String, double[]> getNucleusMeasurements(){
+        return nucleusMeasurements;
+    }
+
+    LinkedHashMap<Integer, int[]> getCellNucleusMap(){
+        return cellNucleusMap_v2;
+    }
+
+    public int getNNuclei(){
+        return nNucleusRois;
+    }
+
+    int[] getNucleiOfCell(int i){
+        return cellNucleusIndex!=null ? cellNucleusIndex.get(i) : cellNucleusMap_v2.get(i);
+    }
+
+    private Roi getNucleusRoi(int j) throws IOException {
+        return offHeapNuclei!=null ? offHeapNuclei.getRoi(j) : nucleusRois[j];
+    }
+
+    private double getNucleusValue(int column, int j){
+        return offHeapNuclei!=null ? offHeapNuclei.getValue(j, column) : nucleusMeasurements.get(columns.get(column))[j];
+    }
+
+    Calibration getCalibration(){
+        return calibration;
+    }
+
+    // drops cells before matching, e.g. ones a shard worker does not own
+    void keepCells(boolean[] keep){
+        int n = 0;
+        for(boolean k:keep) if(k) n++;
+
+        Roi[] keptRois = new Roi[n];
+        for(int i=0, j=0; i<nCellRois; i++) if(keep[i]) keptRois[j++] = cellRois[i];
+        cellMeasurements = keepMeasurements(cellMeasurements, keep, n);
+
+        cellRois = keptRois;
+        nCellRois = n;
+        nNucleiPerCell = new double[nCellRois];
+        cellRoisNames = new String[nCellRois];
+        for(int i=0; i<nCellRois; i++) cellRoisNames[i] = cellRois[i].getName();
+    }
+
+    void keepNuclei(boolean[] keep){
+        int n = 0;
+        for(boolean k:keep) if(k) n++;
+
+        Roi[] keptRois = new Roi[n];
+        for(int i=0, j=0; i<nNucleusRois; i++) if(keep[i]) keptRois[j++] = nucleusRois[i];
+        nucleusMeasurements = keepMeasurements(nucleusMeasurements, keep, n);
+
+        nucleusRois = keptRois;
+        nNucleusRois = n;
+        LinkedHashMap<Roi, Point> keptCentres = new LinkedHashMap<>();
+        for(Roi r:nucleusRois) keptCentres.put(r, nucleusRoisAndCentres.get(r));
+        nucleusRoisAndCentres = keptCentres;
+    }
+
+    private LinkedHashMap<String, double[]> keepMeasurements(LinkedHashMap<String, double[]> measurements, boolean[] keep, int n){
+        LinkedHashMap<String, double[]> out = new LinkedHashMap<>();
+        for(String h:measurements.keySet()){
+            double[] values = measurements.get(h);
+            if(values==null){
+                out.put(h, null);
+                continue;
+            }
+            double[] kept = new double[n];
+            for(int i=0, j=0; i<keep.length; i++) if(keep[i]) kept[j++] = values[i];
+            out.put(h, kept);
+        }
+        return out;
+    }
+
     public void setMeasurements(boolean getArea, boolean getCentroid, boolean getPerimeter, boolean getEllipse,
                                 boolean getCirc, boolean getAR, boolean getRound, boolean getSolidity){
-        columns = new ArrayList<>();
+        columns = getColumns(getArea, getCentroid, getPerimeter, getEllipse, getCirc, getAR, getRound, getSolidity);
+
+        nMeasurements = columns.size();
+
+        summaryMeanMap = new LinkedHashMap<>();
+        summaryStdMap = new LinkedHashMap<>();
+    }
+
+    static ArrayList<String> getColumns(boolean getArea, boolean getCentroid, boolean getPerimeter, boolean getEllipse,
+                                        boolean getCirc, boolean getAR, boolean getRound, boolean getSolidity){
+        ArrayList<String> columns = new ArrayList<>();
         if(getArea) columns.add("Area");
         if(getCentroid){
             columns.add("X");
@@ -201,11 +508,7 @@ public class NucleusCounter {
         if(getAR) columns.add("AR");
         if(getRound) columns.add("Round");
         if(getSolidity) columns.add("Solidity");
-
-        nMeasurements = columns.size();
-
-        summaryMeanMap = new LinkedHashMap<>();
-        summaryStdMap = new LinkedHashMap<>();
+        return columns;
     }
 
     public void setOptions(boolean isCell,
@@ -221,7 +524,7 @@ public class NucleusCounter {
         this.includeHoles[i] = includeHoles;
     }
 
-    private Point getRoiCentre(Roi r){
+    static Point getRoiCentre(Roi r){
 
         Point[] containedPoints = r.getContainedPoints();
         int nContainedPoints = containedPoints.length;
@@ -253,28 +556,67 @@ public class NucleusCounter {
     }
 
     public void matchNucleiToCells_v2(){
+        if(offHeapNuclei!=null){
+            matchOffHeapNuclei();
+            return;
+        }
+        cellNucleusIndex = null;
         cellNucleusMap_v2 = new LinkedHashMap<>();
 
-        for(int i=0; i<nCellRois; i++){
-            Roi c = cellRois[i];
-            ArrayList<Integer> contained = new ArrayList<>();
+        Point[] nucleusCentres = new Point[nNucleusRois];
+        for(int j=0; j<nNucleusRois; j++) nucleusCentres[j] = nucleusRoisAndCentres.get(nucleusRois[j]);
 
-            for(int j=0; j<nNucleusRois; j++){
-                Roi n = nucleusRois[j];
-                Point nC = nucleusRoisAndCentres.get(n);
-                if(c.contains(nC.x, nC.y)){
-                    contained.add(j);
-                }
-            }
+        ContainmentTree tree = new ContainmentTree(new Roi[][]{cellRois, nucleusRois}, new Point[][]{null, nucleusCentres});
+        for(int i=0; i<nCellRois; i++) cellNucleusMap_v2.put(i, tree.getChildren(0, i));
+    }
 
-            int[] containedNucleiIndices = contained.stream().mapToInt(x->x).toArray();
-            cellNucleusMap_v2.put(i, containedNucleiIndices);
+    // the same tightest-cell rule as ContainmentTree, one nucleus at a time, with the parents written off-heap
+    private void matchOffHeapNuclei(){
+        Rectangle[] bounds = new Rectangle[nCellRois];
+        for(int i=0; i<nCellRois; i++) bounds[i] = cellRois[i].getBounds();
+        SpatialIndex index = new SpatialIndex(bounds);
+        for(int j=0; j<nNucleusRois; j++){
+            offHeapNuclei.setParent(j, ContainmentTree.findParent(cellRois, bounds, index, offHeapNuclei.getCentre(j)));
         }
+        cellNucleusMap_v2 = null;
+        cellNucleusIndex = new CompressedChildIndex(nCellRois, nNucleusRois, offHeapNuclei::getParent);
     }
 
-    private void analyseCrop_v2(int n, boolean exportResults, boolean exportCrops) throws IOException {
+    private String getTitle(){
+        return imp!=null ? imp.getTitle() : new File(saveDir).getName().replace(" - results", "");
+    }
+
+    // identifies a segmentation: the same objects, names and matching always give the same fingerprint
+    String getFingerprint(){
+        CRC32 crc = new CRC32();
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<nCellRois; i++){
+            Rectangle b = cellRois[i].getBounds();
+            sb.setLength(0);
+            sb.append(cellRois[i].getName()).append(b.x).append(',').append(b.y).append(',').append(b.width).append(',').append(b.height);
+            for(int j:cellNucleusMap_v2.get(i)) sb.append(',').append(j);
+            crc.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        for(Roi r:nucleusRois){
+            Rectangle b = r.getBounds();
+            crc.update((r.getName()+b.x+','+b.y+','+b.width+','+b.height).getBytes(StandardCharsets.UTF_8));
+        }
+        return nCellRois+"\t"+nNucleusRois+"\t"+String.join(",", columns)+"\t"+Long.toHexString(crc.getValue());
+    }
+
+    // the files analyseCrop_v2 writes for cell n with the given exports
+    private ArrayList<File> getCellFiles(int n, boolean exportResults, boolean exportCrops, boolean exportRois){
+        ArrayList<File> files = new ArrayList<>();
+        String name = cellRois[n].getName();
+        if(exportResults) files.add(new File(resultsDir, name+".csv"));
+        if(exportCrops) files.add(new File(cropsDir, name+".tif"));
+        if(exportRois) files.add(new File(roiDir, name+"-RoiSet.zip"));
+        return files;
+    }
+
+    private void analyseCrop_v2(int n, boolean exportResults, boolean exportCrops, boolean exportRois) throws IOException {
         Roi cellRoi = cellRois[n];
-        int[] containedNucleiIndices = cellNucleusMap_v2.get(n);
+        int[] containedNucleiIndices = getNucleiOfCell(n);
         Rectangle rect = cellRoi.getBounds();
         Roi _cellRoi = (Roi) cellRoi.clone();
         _cellRoi.setLocation(_cellRoi.getBounds().x- rect.x, cellRoi.getBounds().y -rect.y);
@@ -286,18 +628,19 @@ public class NucleusCounter {
         int nNuclei = containedNucleiIndices.length;
         LinkedHashMap<String, double[]> containedNucleiMeasurements = new LinkedHashMap<>();
         for(String c:columns) containedNucleiMeasurements.put(c, new double[nNuclei]);
+        Roi[] containedRois = new Roi[nNuclei];
 
         for(int i=0; i<nNuclei; i++){
             rt.incrementCounter();
 
             int ci = containedNucleiIndices[i];
-            Roi r = nucleusRois[ci];
+            Roi r = getNucleusRoi(ci);
+            containedRois[i] = r;
 
-            for(String h:columns){
-                double[] measurement = containedNucleiMeasurements.get(h);
-                double thisMeasurement = nucleusMeasurements.get(h)[ci];
-                measurement[i] = thisMeasurement;
-                containedNucleiMeasurements.put(h, measurement);
+            for(int c=0; c<nMeasurements; c++){
+                String h = columns.get(c);
+                double thisMeasurement = getNucleusValue(c, ci);
+                containedNucleiMeasurements.get(h)[i] = thisMeasurement;
                 if(exportResults){
                     rt.addValue("Nucleus name", r.getName());
                     if(h=="X") rt.addValue(h, thisMeasurement-rect.x*calibration.pixelWidth);
@@ -305,7 +648,8 @@ public class NucleusCounter {
                     else rt.addValue(h, thisMeasurement);
                 }
             }
-            if(exportCrops){
+            // moved even when only the Roi set is written again on resume, so it matches a full run
+            if(saveCrops){
                 r.setLocation(r.getBounds().x-rect.x, r.getBounds().y-rect.y);
                 r.setPosition(2);
                 r.setStrokeColor(Color.blue);
@@ -315,7 +659,7 @@ public class NucleusCounter {
         }
 
         if(exportResults) rt.save(resultsDir+File.separator+cellRoi.getName()+".csv");
-        if(exportCrops){
+        if(saveCrops){
             Roi cropRoi = new Roi(rect);
             cropRoi.setName(cellRoi.getName());
             cropRois[n] = cropRoi;
@@ -342,12 +686,11 @@ public class NucleusCounter {
             summaryMeanMap.put(h, summaryMeanMeasurements);
             summaryStdMap.put(h, summaryStdMeasurements);
         }
+        statistics.addCell(cellMeasurements, n, containedNucleiMeasurements, nNuclei);
 
         if(exportCrops){
-            ipCell.setRoi(rect);
-            ImageProcessor ipCellCrop = ipCell.crop();
-            ipNuclei.setRoi(rect);
-            ImageProcessor ipNucleiCrop = ipNuclei.crop();
+            ImageProcessor ipCellCrop = maskCell.crop(rect).toByteProcessor();
+            ImageProcessor ipNucleiCrop = maskNuclei.crop(rect).toByteProcessor();
 
             _cellRoi.setPosition(1);
             _cellRoi.setStrokeColor(Color.white);
@@ -364,11 +707,11 @@ public class NucleusCounter {
             IJ.saveAsTiff(compositeImage, cropsDir+File.separator+_cellRoi.getName());
         }
 
-        if(saveRois){
+        if(exportRois){
             String path = roiDir+File.separator+cellRoi.getName()+"-RoiSet.zip";
             Roi[] allRois = new Roi[nNuclei+1];
             allRois[0] = cellRoi;
-            for(int i=0; i<nNuclei; i++) allRois[i+1] = nucleusRois[containedNucleiIndices[i]];
+            System.arraycopy(containedRois, 0, allRois, 1, nNuclei);
             roiSaver(allRois, path);
         }
     }
@@ -411,10 +754,8 @@ public class NucleusCounter {
         nucleusAreaStdPerCell[n] = sqrt(variance(areas));
 
         if(exportCrops){
-            ipCell.setRoi(rect);
-            ImageProcessor ipCellCrop = ipCell.crop();
-            ipNuclei.setRoi(rect);
-            ImageProcessor ipNucleiCrop = ipNuclei.crop();
+            ImageProcessor ipCellCrop = maskCell.crop(rect).toByteProcessor();
+            ImageProcessor ipNucleiCrop = maskNuclei.crop(rect).toByteProcessor();
 
             cellRoi.setLocation(cellRoi.getBounds().x- rect.x, cellRoi.getBounds().y -rect.y);
             cellRoi.setPosition(1);
@@ -470,10 +811,60 @@ public class NucleusCounter {
         cropRois = new Roi[nCellRois];
         double[] cellAreas = cellMeasurements.get("Area");
 
+        // nuclei spilled to disk are only read back one cell at a time
+        boolean offHeap = offHeapNuclei!=null;
+        if(offHeap && saveDir!=null && saveStore) IJ.log("WARN: the result store is not written when the nuclei are spilled to disk");
+        if(offHeap && checkpointing && saveDir!=null && (saveResults || saveCrops || saveRois)){
+            IJ.log("WARN: progress is not checkpointed when the nuclei are spilled to disk");
+        }
+
+        // exporting crops moves the nucleus Rois, so the store and the label map use copies taken beforehand
+        Roi[] nucleusGeometry = null;
+        if(!offHeap && ((saveDir!=null && saveStore) || (showResults && !useRoiManager))){
+            nucleusGeometry = new Roi[nNucleusRois];
+            for(int j=0; j<nNucleusRois; j++) nucleusGeometry[j] = (Roi) nucleusRois[j].clone();
+        }
+
+        Checkpoint checkpoint = null;
+        HashMap<Integer, String[]> progress = new HashMap<>();
+        if(!offHeap && checkpointing && saveDir!=null && (saveResults || saveCrops || saveRois)){
+            checkpoint = new Checkpoint(saveDir);
+            String fingerprint = getFingerprint();
+            if(checkpoint.hasSegmentation() && fingerprint.equals(checkpoint.getFingerprint())){
+                progress = checkpoint.loadProgress();
+                if(!checkpointSettings.equals(checkpoint.getSettings())) checkpoint.saveSettings(checkpointSettings);
+            }
+            else{
+                if(checkpoint.hasSegmentation()) IJ.log("WARN: "+saveDir+" holds results of a different segmentation, starting again");
+                checkpoint.saveSegmentation(getResultStore(getTitle(), null, nucleusGeometry!=null ? nucleusGeometry : nucleusRois), fingerprint, checkpointSettings);
+            }
+        }
+
+        statistics = new DatasetStatistics();
+        int nSkipped = 0;
         for(int i=0; i<cellRois.length; i++){
             IJ.showProgress(i+1, nCellRois);
             IJ.showStatus("Working on cell "+(i+1)+" of "+nCellRois);
-            analyseCrop_v2(i, saveResults, saveCrops);
+            // only the files missing or changed since the last run are written again
+            boolean exportResults = saveResults, exportCrops = saveCrops, exportRois = saveRois;
+            ArrayList<File> keptFiles = new ArrayList<>();
+            if(progress.containsKey(i)){
+                ArrayList<String> verified = checkpoint.getVerifiedFiles(progress.get(i));
+                for(File f:getCellFiles(i, saveResults, saveCrops, saveRois)){
+                    if(!verified.contains(checkpoint.getRelativePath(f))) continue;
+                    keptFiles.add(f);
+                    if(f.getName().endsWith(".csv")) exportResults = false;
+                    else if(f.getName().endsWith(".tif")) exportCrops = false;
+                    else exportRois = false;
+                }
+            }
+            boolean exporting = exportResults || exportCrops || exportRois;
+            if(!exporting) nSkipped++;
+            analyseCrop_v2(i, exportResults, exportCrops, exportRois);
+            if(checkpoint!=null && exporting){
+                keptFiles.addAll(getCellFiles(i, exportResults, exportCrops, exportRois));
+                checkpoint.recordCell(i, keptFiles);
+            }
 
             rt.incrementCounter();
             rt.addValue("Cell name", cellRois[i].getName());
@@ -487,9 +878,37 @@ public class NucleusCounter {
             }
         }
 
+        summaryTable = rt;
+        if(checkpoint!=null){
+            checkpoint.finish();
+            if(nSkipped>0) IJ.log(getTitle()+": "+nSkipped+" of "+nCellRois+" cells were already exported by an earlier run");
+        }
+
+        if(saveDir!=null && saveCrops) roiSaver(cropRois, saveDir + File.separator + "Crops-RoiSet.zip");
+        if(saveDir!=null) statistics.saveReport(saveDir);
+        if(!offHeap && saveDir!=null && saveStore){
+            String title = getTitle();
+            getResultStore(title, rt, nucleusGeometry).save(new File(saveDir, ResultStore.FILE_NAME));
+        }
+
+        closeOffHeapNuclei();
+
+        if(!showResults) return;
+
         rt.show("Summary Results");
+        statistics.getReport().show("Dataset statistics");
+        if(offHeap){
+            IJ.log("WARN: when the nuclei are spilled to disk only the tables are shown, not the objects");
+            return;
+        }
 
-        if(saveDir!=null) roiSaver(cropRois, saveDir + File.separator + "Crops-RoiSet.zip");
+        if(!useRoiManager){
+            if(imp==null) return;
+            int[][] cellNuclei = new int[nCellRois][];
+            for(int i=0; i<nCellRois; i++) cellNuclei[i] = cellNucleusMap_v2.get(i);
+            new LabelMapDisplay(imp, cellRois, nucleusGeometry, cellNuclei).show(0.5);
+            return;
+        }
 
         RoiManager thisManager = RoiManager.getInstance();
         if(thisManager!=null){
@@ -1,4 +1,5 @@
 import ij.*;
+import ij.gui.GenericDialog;
 import ij.gui.NonBlockingGenericDialog;
 import ij.io.DirectoryChooser;
 import ij.plugin.PlugIn;
@@ -6,6 +7,7 @@ import ij.process.ImageProcessor;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class NucleusCounterGUI_ implements PlugIn {
 
@@ -16,28 +18,29 @@ public class NucleusCounterGUI_ implements PlugIn {
     ImagePlus imp;
     String imageTitle;
     int nImages;
-    String[] channelChoice = new String[]{"1", "2"};
+    String[] channelChoice;
     boolean getArea, getCentroid, getPerimeter, getEllipse, getCirc, getAR, getRound, getSolidity;
-    boolean saveResults, saveImages, saveRoiSets;
+    boolean saveResults, saveImages, saveRoiSets, saveStore, useRoiManager;
+    boolean isTimeLapse;
+    String[] thresholdMethods;
+    boolean darkBackground;
+    double maxDisplacement, minTrackOverlap;
+    // in MB, 0 keeps every nucleus on the heap
+    double nucleusStripMemory;
     int nucleusChannel, cellChannel;
+    // channels of any further nested levels (e.g. nucleoli inside nuclei), outermost first
+    int[] innerChannels = new int[0];
 
-    String[] minSizeKeys = new String[]{"minSize1", "minSize2"};
-    String[] maxSizeKeys = new String[]{"maxSize1", "maxSize2"};
-    String[] minCircKeys = new String[]{"minCirc1", "minCirc2"};
-    String[] maxCircKeys = new String[]{"maxCirc1", "maxCirc2"};
-    String[] excludeEdgeKeys = new String[]{"exclude1", "exclude2"};
-    String[] includeHolesKeys = new String[]{"include1", "include2"};
+    String[] minSizeKeys, maxSizeKeys, minCircKeys, maxCircKeys, excludeEdgeKeys, includeHolesKeys, splitKeys;
 
-    double[] minSizes = new double[2];
-    double[] maxSizes = new double[2];
-    double[] minCircs = new double[2];
-    double[] maxCircs = new double[2];
+    double[] minSizes, maxSizes, minCircs, maxCircs;
 
-    boolean[] excludeEdge = new boolean[2];
-    boolean[] includeHoles = new boolean[2];
+    boolean[] excludeEdge, includeHoles, splitTouching;
 
     String saveDir, roisDir, resultsDir, imagesDir;
 
+    LivePreview preview;
+
     public void beforeSetupDialog() {
         imp = WindowManager.getCurrentImage();
 
@@ -55,20 +58,68 @@ public class NucleusCounterGUI_ implements PlugIn {
         }
 
         ImageStack ims = imp.getImageStack();
-        nImages = ims.size();
+        // for a time-lapse hyperstack the choices are channels, and every frame is analysed
+        isTimeLapse = imp.getNFrames()>1;
+        nImages = isTimeLapse ? imp.getNChannels() : ims.size();
         imageTitle = imp.getTitle();
 
-        if(nImages!=2){
-            IJ.error("Expected an image with two channels, this image only has "+nImages);
+        if(nImages<2){
+            IJ.error("Expected an image with at least two channels, this image only has "+nImages);
             imp = null;
+            return;
+        }
+
+        // analysis settings are kept per channel
+        channelChoice = new String[nImages];
+        minSizeKeys = new String[nImages];
+        maxSizeKeys = new String[nImages];
+        minCircKeys = new String[nImages];
+        maxCircKeys = new String[nImages];
+        excludeEdgeKeys = new String[nImages];
+        includeHolesKeys = new String[nImages];
+        splitKeys = new String[nImages];
+        for(int c=0; c<nImages; c++){
+            channelChoice[c] = ""+(c+1);
+            minSizeKeys[c] = "minSize"+(c+1);
+            maxSizeKeys[c] = "maxSize"+(c+1);
+            minCircKeys[c] = "minCirc"+(c+1);
+            maxCircKeys[c] = "maxCirc"+(c+1);
+            excludeEdgeKeys[c] = "exclude"+(c+1);
+            includeHolesKeys[c] = "include"+(c+1);
+            splitKeys[c] = "split"+(c+1);
         }
+        minSizes = new double[nImages];
+        maxSizes = new double[nImages];
+        minCircs = new double[nImages];
+        maxCircs = new double[nImages];
+        excludeEdge = new boolean[nImages];
+        includeHoles = new boolean[nImages];
+        splitTouching = new boolean[nImages];
+    }
+
+    private String[] getInnerChannelChoice(){
+        String[] choice = new String[nImages+1];
+        choice[0] = "None";
+        System.arraycopy(channelChoice, 0, choice, 1, nImages);
+        return choice;
     }
 
     public void setupDialog(){
         gd = new NonBlockingGenericDialog("Measure nuclei per cell");
-        gd.addMessage("Expected input is a two-channel thresholded image with cells in one slice and nuclei in the other");
+        gd.addMessage("Expected input is a two-channel image with cells in one slice and nuclei in the other");
         gd.addChoice("Cells are in frame...", channelChoice, getPrefs("cellChannel", channelChoice[0]));
         gd.addChoice("Nuclei are in frame...", channelChoice, getPrefs("nucleiChannel", channelChoice[1]));
+        for(int l=2; l<nImages; l++){
+            gd.addChoice(HierarchyCounter.getDefaultPlural(l)+" (inside "+HierarchyCounter.getDefaultPlural(l-1)+") are in frame...",
+                    getInnerChannelChoice(), getPrefs("level"+(l+1)+"Channel", "None"));
+        }
+        gd.addMessage("-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-");
+        gd.addMessage("Thresholding (leave as 'None' if the image is already thresholded)");
+        for(int c=0; c<nImages; c++){
+            gd.addChoice("Threshold frame "+channelChoice[c]+" with...", ParallelThresholder.METHODS,
+                    getPrefs("threshold"+(c+1), ParallelThresholder.NONE));
+        }
+        gd.addCheckbox("Objects are brighter than the background", getPrefs("darkBackground", true));
         gd.addMessage("-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-");
         gd.addMessage("Select which measurements you want");
         gd.addCheckbox("Area", getPrefs("getArea", true));
@@ -83,6 +134,15 @@ public class NucleusCounterGUI_ implements PlugIn {
         gd.addCheckbox("Save results per cell?", getPrefs("saveResults", saveResults));
         gd.addCheckbox("Save individual cell crops?", getPrefs("saveImages", saveImages));
         gd.addCheckbox("Save Roi sets?", getPrefs("saveRoiSets", saveRoiSets));
+        gd.addCheckbox("Save result store (to filter and re-export later)?", getPrefs("saveStore", saveStore));
+        gd.addCheckbox("Show objects in the Roi Manager (slow for many objects)?", getPrefs("useRoiManager", useRoiManager));
+        gd.addNumericField("Spill nuclei to disk, strip memory (MB, 0 = off)", getPrefs("nucleusStripMemory", 0), 0);
+        if(isTimeLapse){
+            gd.addMessage("-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-");
+            gd.addMessage("Cell tracking between frames");
+            gd.addNumericField("Maximum cell displacement (in pixels)", getPrefs("maxDisplacement", 20), 0);
+            gd.addNumericField("Minimum overlap for division/fusion", getPrefs("minTrackOverlap", 0.5), 2);
+        }
         //TODO: debug inverted image maybe
     }
 
@@ -97,12 +157,63 @@ public class NucleusCounterGUI_ implements PlugIn {
         gdAnalyze.addMessage("  ");
         gdAnalyze.addCheckbox("Exclude edge particles?", getPrefs(excludeEdgeKeys[c], excludeEdge[c]));
         gdAnalyze.addCheckbox("Include holes?", getPrefs(includeHolesKeys[c], includeHoles[c]));
+        gdAnalyze.addCheckbox("Split touching particles (watershed)?", getPrefs(splitKeys[c], splitTouching[c]));
+        gdAnalyze.addMessage("-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-");
+        // sized for the longest counts line, the label doesn't grow once the dialog is shown
+        gdAnalyze.addMessage(String.format("%90s", " "));
+        gdAnalyze.addCheckbox("Live preview (yellow passes, red is filtered out)", getPrefs("livePreview", true));
+
+        // the preview pairs each channel with the level it is matched against
+        int channel = c+1, parent = cellChannel, child = nucleusChannel, parentLevel = 0;
+        for(int k=0; k<innerChannels.length; k++){
+            if(innerChannels[k]!=channel) continue;
+            parent = k==0 ? nucleusChannel : innerChannels[k-1];
+            child = channel;
+            parentLevel = k+1;
+        }
+        preview.attach(gdAnalyze, channel, parent, child, parentLevel);
     }
 
     public boolean loadSettings() {
         cellChannel = gd.getNextChoiceIndex() + 1;
         nucleusChannel = gd.getNextChoiceIndex() + 1;
 
+        // nesting stops at the first level left as "None"
+        int nInner = 0;
+        int[] inner = new int[Math.max(0, nImages-2)];
+        boolean stopped = false;
+        for(int l=2; l<nImages; l++){
+            int choice = gd.getNextChoiceIndex();
+            setPrefs("level"+(l+1)+"Channel", getInnerChannelChoice()[choice]);
+            if(choice==0) stopped = true;
+            if(!stopped) inner[nInner++] = choice;
+        }
+        innerChannels = Arrays.copyOf(inner, nInner);
+
+        // a channel used for two levels would make every object its own parent
+        boolean[] used = new boolean[nImages+1];
+        used[cellChannel] = true;
+        if(used[nucleusChannel]){
+            IJ.error("Cells and nuclei must be in different channels");
+            return false;
+        }
+        used[nucleusChannel] = true;
+        for(int channel:innerChannels){
+            if(used[channel]){
+                IJ.error("Each level must be in a different channel, channel "+channel+" is chosen twice");
+                return false;
+            }
+            used[channel] = true;
+        }
+
+        thresholdMethods = new String[nImages];
+        for(int c=0; c<nImages; c++){
+            thresholdMethods[c] = ParallelThresholder.METHODS[gd.getNextChoiceIndex()];
+            setPrefs("threshold"+(c+1), thresholdMethods[c]);
+        }
+        darkBackground = gd.getNextBoolean();
+        setPrefs("darkBackground", darkBackground);
+
         getArea = gd.getNextBoolean();
         getCentroid = gd.getNextBoolean();
         getPerimeter = gd.getNextBoolean();
@@ -115,6 +226,9 @@ public class NucleusCounterGUI_ implements PlugIn {
         saveResults = gd.getNextBoolean();
         saveImages = gd.getNextBoolean();
         saveRoiSets = gd.getNextBoolean();
+        saveStore = gd.getNextBoolean();
+        useRoiManager = gd.getNextBoolean();
+        nucleusStripMemory = gd.getNextNumber();
 
         setPrefs("cellChannel", channelChoice[cellChannel-1]);
         setPrefs("nucleusChannel", channelChoice[nucleusChannel-1]);
@@ -131,6 +245,16 @@ public class NucleusCounterGUI_ implements PlugIn {
         setPrefs("saveResults", saveResults);
         setPrefs("saveImages", saveImages);
         setPrefs("saveRoiSets", saveRoiSets);
+        setPrefs("saveStore", saveStore);
+        setPrefs("useRoiManager", useRoiManager);
+        setPrefs("nucleusStripMemory", nucleusStripMemory);
+
+        if(isTimeLapse){
+            maxDisplacement = gd.getNextNumber();
+            minTrackOverlap = gd.getNextNumber();
+            setPrefs("maxDisplacement", maxDisplacement);
+            setPrefs("minTrackOverlap", minTrackOverlap);
+        }
         return true;
     }
 
@@ -143,6 +267,9 @@ public class NucleusCounterGUI_ implements PlugIn {
 
         excludeEdge[c] = gdAnalyze.getNextBoolean();
         includeHoles[c] = gdAnalyze.getNextBoolean();
+        splitTouching[c] = gdAnalyze.getNextBoolean();
+        setPrefs("livePreview", gdAnalyze.getNextBoolean());
+        preview.setFilter(c, minSizes[c], maxSizes[c], minCircs[c], maxCircs[c], excludeEdge[c], includeHoles[c], splitTouching[c]);
 
         setPrefs(minSizeKeys[c], minSizes[c]);
         setPrefs(maxSizeKeys[c], maxSizes[c]);
@@ -152,12 +279,13 @@ public class NucleusCounterGUI_ implements PlugIn {
 
         setPrefs(excludeEdgeKeys[c], excludeEdge[c]);
         setPrefs(includeHolesKeys[c], includeHoles[c]);
+        setPrefs(splitKeys[c], splitTouching[c]);
         return true;
     }
 
 
     public void execute() throws IOException {
-        if(saveRoiSets || saveResults || saveImages){
+        if(saveRoiSets || saveResults || saveImages || saveStore){
             DirectoryChooser directoryChooser = new DirectoryChooser("Choose save directory");
             String dir = directoryChooser.getDirectory();
 
@@ -173,23 +301,113 @@ public class NucleusCounterGUI_ implements PlugIn {
             if(saveImages) imagesDir = makeDirectory(saveDir+File.separator+"crops");
         }
 
+        if(isTimeLapse){
+            executeTimeLapse();
+            return;
+        }
+
+        if(innerChannels.length>0){
+            executeHierarchy();
+            return;
+        }
+
+        if(nucleusStripMemory<=0 && saveDir!=null && resumeFromCheckpoint()) return;
+
         // actual processing
         ImageStack ims = imp.getImageStack();
         ImageProcessor ipCell = ims.getProcessor(cellChannel);
         ImageProcessor ipNucleus = ims.getProcessor(nucleusChannel);
 
-        NucleusCounter nucleusCounter = new NucleusCounter(imp, cellChannel, nucleusChannel);
+        NucleusCounter nucleusCounter = new NucleusCounter(imp, cellChannel, nucleusChannel,
+                thresholdMethods[cellChannel-1], thresholdMethods[nucleusChannel-1], darkBackground);
 
         nucleusCounter.setSavePaths(saveDir, roisDir, resultsDir, imagesDir);
+        nucleusCounter.setSaveStore(saveStore);
+        nucleusCounter.setUseRoiManager(useRoiManager);
+        nucleusCounter.setNucleusStripMemory(getNucleusStripMemoryBytes());
         nucleusCounter.setMeasurements(getArea, getCentroid, getPerimeter, getEllipse, getCirc, getAR, getRound, getSolidity);
 
-        nucleusCounter.getCellRois(minSizes[0], maxSizes[0], minCircs[0], maxCircs[0], excludeEdge[0], includeHoles[0]);
-        nucleusCounter.getNucleusRois(minSizes[1], maxSizes[1], minCircs[1], maxCircs[1], excludeEdge[1], includeHoles[1]);
+        int c = cellChannel-1, n = nucleusChannel-1;
+        nucleusCounter.splitTouchingObjects(splitTouching[c], splitTouching[n]);
+        nucleusCounter.getCellRois(minSizes[c], maxSizes[c], minCircs[c], maxCircs[c], excludeEdge[c], includeHoles[c]);
+        nucleusCounter.getNucleusRois(minSizes[n], maxSizes[n], minCircs[n], maxCircs[n], excludeEdge[n], includeHoles[n]);
 
         nucleusCounter.matchNucleiToCells_v2();
         nucleusCounter.analyseAllRois_v2();
     }
 
+    // an unfinished run in the same save folder can carry on with the objects it found: segmentation is skipped
+    // and so is every cell whose files are already complete
+    private boolean resumeFromCheckpoint() throws IOException {
+        Checkpoint checkpoint = new Checkpoint(saveDir);
+        if(!checkpoint.hasSegmentation() || checkpoint.isComplete()) return false;
+
+        GenericDialog gdResume = new GenericDialog("Unfinished run found");
+        gdResume.addMessage(saveDir+" holds a run that was interrupted.\n"+
+                "Resume it with the objects it found (the thresholds and limits chosen now are not used),\n"+
+                "or start again from the image?");
+        gdResume.enableYesNoCancel("Resume", "Start again");
+        gdResume.hideCancelButton();
+        gdResume.showDialog();
+        if(!gdResume.wasOKed()) return false;
+
+        NucleusCounter nucleusCounter = NucleusCounter.fromCheckpoint(saveDir);
+        nucleusCounter.setImage(imp, cellChannel, nucleusChannel);
+        nucleusCounter.setSavePaths(saveDir, roisDir, resultsDir, imagesDir);
+        nucleusCounter.setSaveStore(saveStore);
+        nucleusCounter.setUseRoiManager(useRoiManager);
+        nucleusCounter.analyseAllRois_v2();
+        return true;
+    }
+
+    private void executeHierarchy(){
+        int[] channels = new int[innerChannels.length+2];
+        channels[0] = cellChannel;
+        channels[1] = nucleusChannel;
+        System.arraycopy(innerChannels, 0, channels, 2, innerChannels.length);
+
+        if(saveImages || saveRoiSets || saveStore) IJ.log("Crops, Roi sets and the result store are only saved for two-level (cell and nucleus) analysis");
+        if(nucleusStripMemory>0) IJ.log("Nuclei are only spilled to disk for two-level (cell and nucleus) analysis");
+
+        String[] thresholds = new String[channels.length];
+        for(int l=0; l<channels.length; l++) thresholds[l] = thresholdMethods[channels[l]-1];
+
+        HierarchyCounter hierarchyCounter = new HierarchyCounter(imp, channels, thresholds, darkBackground);
+        if(saveDir!=null) hierarchyCounter.setSaveDir(saveDir);
+        hierarchyCounter.setMeasurements(getArea, getCentroid, getPerimeter, getEllipse, getCirc, getAR, getRound, getSolidity);
+
+        for(int l=0; l<channels.length; l++){
+            int c = channels[l]-1;
+            if(splitTouching[c]) hierarchyCounter.splitTouchingObjects(l);
+            hierarchyCounter.getLevelRois(l, minSizes[c], maxSizes[c], minCircs[c], maxCircs[c], excludeEdge[c], includeHoles[c]);
+        }
+
+        hierarchyCounter.buildTree();
+        hierarchyCounter.analyseAll();
+    }
+
+    private void executeTimeLapse() throws IOException {
+        if(innerChannels.length>0) IJ.log("Nested levels beyond nuclei are not tracked, only cells and nuclei are analysed for time-lapse data");
+        if(saveStore) IJ.log("The result store is not saved for time-lapse data");
+
+        TimeLapseCounter timeLapseCounter = new TimeLapseCounter(imp, cellChannel, nucleusChannel, maxDisplacement, minTrackOverlap);
+        if(saveDir!=null) timeLapseCounter.setSavePaths(saveDir, saveRoiSets, saveResults, saveImages);
+        timeLapseCounter.setThresholds(thresholdMethods[cellChannel-1], thresholdMethods[nucleusChannel-1], darkBackground);
+        timeLapseCounter.setNucleusStripMemory(getNucleusStripMemoryBytes());
+        timeLapseCounter.setMeasurements(getArea, getCentroid, getPerimeter, getEllipse, getCirc, getAR, getRound, getSolidity);
+
+        int c = cellChannel-1, n = nucleusChannel-1;
+        timeLapseCounter.setOptions(true, minSizes[c], maxSizes[c], minCircs[c], maxCircs[c], excludeEdge[c], includeHoles[c]);
+        timeLapseCounter.setOptions(false, minSizes[n], maxSizes[n], minCircs[n], maxCircs[n], excludeEdge[n], includeHoles[n]);
+        timeLapseCounter.setSplitTouching(splitTouching[c], splitTouching[n]);
+
+        timeLapseCounter.analyseAllFrames();
+    }
+
+    private long getNucleusStripMemoryBytes(){
+        return nucleusStripMemory>0 ? (long) (nucleusStripMemory*(1<<20)) : 0;
+    }
+
     public void run() {run("");}
 
     @Override
@@ -204,24 +422,51 @@ public class NucleusCounterGUI_ implements PlugIn {
             return;
         }
 
-        loadSettings();
+        if(!loadSettings()) return;
 
-        imp.setSlice(cellChannel);
+        // the dialogs not yet shown are previewed with their saved settings
+        preview = new LivePreview(imp, isTimeLapse, thresholdMethods, darkBackground);
+        for(int c=0; c<nImages; c++){
+            preview.setFilter(c, getPrefs(minSizeKeys[c], 0), getPrefs(maxSizeKeys[c], Double.POSITIVE_INFINITY),
+                    getPrefs(minCircKeys[c], 0), getPrefs(maxCircKeys[c], 1), getPrefs(excludeEdgeKeys[c], excludeEdge[c]),
+                    getPrefs(includeHolesKeys[c], includeHoles[c]), getPrefs(splitKeys[c], splitTouching[c]));
+        }
+
+        showChannel(cellChannel);
         setupAnalyzeDialog(cellChannel-1);
         gdAnalyze.showDialog();
+        preview.detach();
         if (gdAnalyze.wasCanceled()) {
+            closePreview();
             return;
         }
         loadAnalysisSettings(cellChannel-1);
 
-        imp.setSlice(nucleusChannel);
+        showChannel(nucleusChannel);
         setupAnalyzeDialog(nucleusChannel-1);
         gdAnalyze.showDialog();
+        preview.detach();
         if (gdAnalyze.wasCanceled()) {
+            closePreview();
             return;
         }
         loadAnalysisSettings(nucleusChannel-1);
 
+        for(int channel:innerChannels){
+            showChannel(channel);
+            setupAnalyzeDialog(channel-1);
+            gdAnalyze.showDialog();
+            preview.detach();
+            if (gdAnalyze.wasCanceled()) {
+                closePreview();
+                return;
+            }
+            loadAnalysisSettings(channel-1);
+        }
+
+        // its labels would otherwise stay in memory for the whole analysis
+        closePreview();
+
         try {
             execute();
         } catch (IOException e) {
@@ -231,6 +476,16 @@ public class NucleusCounterGUI_ implements PlugIn {
         prefs.savePreferences();
     }
 
+    private void closePreview(){
+        preview.close();
+        preview = null;
+    }
+
+    private void showChannel(int channel){
+        if(isTimeLapse) imp.setC(channel);
+        else imp.setSlice(channel);
+    }
+
     public static void main(String args[]){
         Class<?> clazz = NucleusCounterGUI_.class;
         String url = clazz.getResource("/" + clazz.getName().replace('.', '/') + ".class").toString();
@@ -0,0 +1,143 @@
+import ij.IJ;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/*
+ Per-nucleus data of a bounded-memory run, kept in two temporary files instead of on the heap:
+   records   one fixed-size row per nucleus: centre x and y, parent cell, geometry length and offset, then one
+             double per measurement column; memory-mapped once written, so the OS pages it in and out
+   geometry  every Roi in RoiEncoder format, read back one at a time when a cell is exported
+ Nuclei are appended in order while the image is scanned; afterwards only the parent cell can change.
+ */
+public class OffHeapNuclei {
+
+    // x, y, parent and geometry length as ints, then the geometry offset as a long
+    private static final int HEADER = 24;
+    private static final int MAX_CHUNK = 1<<30, WRITE_BUFFER = 1<<20;
+
+    private final File dir, recordFile, geometryFile;
+    private final FileChannel records, geometry;
+    private final int recordSize, recordsPerChunk;
+    private final ByteBuffer recordBuffer, geometryBuffer;
+    private MappedByteBuffer[] chunks;
+    private long geometrySize = 0;
+    private int n = 0;
+
+    public OffHeapNuclei(int nColumns) throws IOException {
+        dir = Files.createTempDirectory("nucleus-counter-").toFile();
+        recordFile = new File(dir, "records");
+        geometryFile = new File(dir, "geometry");
+        // deleted in reverse order of registration, so the directory goes last
+        dir.deleteOnExit();
+        recordFile.deleteOnExit();
+        geometryFile.deleteOnExit();
+        records = new RandomAccessFile(recordFile, "rw").getChannel();
+        geometry = new RandomAccessFile(geometryFile, "rw").getChannel();
+
+        recordSize = HEADER+8*nColumns;
+        // a mapped chunk holds whole records, so no record is split between two buffers
+        recordsPerChunk = MAX_CHUNK/recordSize;
+        recordBuffer = ByteBuffer.allocateDirect(Math.max(1, WRITE_BUFFER/recordSize)*recordSize);
+        geometryBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER);
+    }
+
+    public void add(Roi roi, Point centre, double[] values) throws IOException {
+        byte[] bytes = RoiEncoder.saveAsByteArray(roi);
+        if(recordBuffer.remaining()<recordSize) flush(records, recordBuffer);
+        recordBuffer.putInt(centre.x).putInt(centre.y).putInt(-1).putInt(bytes.length).putLong(geometrySize);
+        for(double v:values) recordBuffer.putDouble(v);
+
+        if(geometryBuffer.remaining()<bytes.length) flush(geometry, geometryBuffer);
+        if(bytes.length>geometryBuffer.capacity()) write(geometry, ByteBuffer.wrap(bytes));
+        else geometryBuffer.put(bytes);
+        geometrySize += bytes.length;
+        n++;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        write(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    // call once every nucleus has been added
+    public void finish() throws IOException {
+        flush(records, recordBuffer);
+        flush(geometry, geometryBuffer);
+
+        int nChunks = (n+recordsPerChunk-1)/recordsPerChunk;
+        chunks = new MappedByteBuffer[nChunks];
+        for(int c=0; c<nChunks; c++){
+            long first = (long) c*recordsPerChunk;
+            long size = Math.min(recordsPerChunk, n-first)*recordSize;
+            chunks[c] = records.map(FileChannel.MapMode.READ_WRITE, first*recordSize, size);
+        }
+    }
+
+    public int size(){
+        return n;
+    }
+
+    private MappedByteBuffer chunk(int i){
+        return chunks[i/recordsPerChunk];
+    }
+
+    private int offset(int i){
+        return (i%recordsPerChunk)*recordSize;
+    }
+
+    public Point getCentre(int i){
+        MappedByteBuffer chunk = chunk(i);
+        int offset = offset(i);
+        return new Point(chunk.getInt(offset), chunk.getInt(offset+4));
+    }
+
+    public int getParent(int i){
+        return chunk(i).getInt(offset(i)+8);
+    }
+
+    public void setParent(int i, int parent){
+        chunk(i).putInt(offset(i)+8, parent);
+    }
+
+    public double getValue(int i, int column){
+        return chunk(i).getDouble(offset(i)+HEADER+8*column);
+    }
+
+    // a new copy every time, so moving it for a crop doesn't change what is stored
+    public Roi getRoi(int i) throws IOException {
+        MappedByteBuffer chunk = chunk(i);
+        int offset = offset(i);
+        ByteBuffer bytes = ByteBuffer.allocate(chunk.getInt(offset+12));
+        long position = chunk.getLong(offset+16);
+        while(bytes.hasRemaining()){
+            if(geometry.read(bytes, position+bytes.position())<0) throw new IOException("Geometry of nucleus "+i+" is cut short");
+        }
+        return RoiDecoder.openFromByteArray(bytes.array());
+    }
+
+    // a mapped file can't be deleted on Windows until the mapping is garbage collected, in which case it is
+    // left for deleteOnExit
+    public void close() throws IOException {
+        chunks = null;
+        records.close();
+        geometry.close();
+        for(File f:new File[]{recordFile, geometryFile, dir}){
+            if(!f.delete()) IJ.log("WARN: could not delete "+f.getPath()+" yet, it will be removed when ImageJ exits");
+        }
+    }
+}
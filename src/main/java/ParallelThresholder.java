@@ -0,0 +1,152 @@
+import ij.Prefs;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ij.util.ThreadUtil;
+
+// Thresholds raw channels straight into the bit-packed masks used for labelling. Histograms are built
+// per block of rows in parallel and summed; the threshold itself comes from ImageJ's AutoThresholder.
+public class ParallelThresholder {
+
+    public static final String NONE = "None (already binary)";
+    public static final String[] METHODS = {NONE, "Otsu", "Li", "Triangle", "Huang"};
+
+    private final int nThreads;
+
+    public ParallelThresholder(){
+        this(Prefs.getThreads());
+    }
+
+    public ParallelThresholder(int nThreads){
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    // darkBackground means the objects are brighter than the background, as in fluorescence images
+    public BitMask toMask(ImageProcessor ip, String method, boolean darkBackground){
+        if(method==null || method.equals(NONE)) return BitMask.fromProcessor(ip);
+        return toMask(ip, getLevel(ip, method, darkBackground));
+    }
+
+    /*
+     The raw pixel values {lower, upper} that ImageProcessor.setAutoThreshold(method, darkBackground, ...) would set
+     on ip with a normal LUT, or null for NONE. Like ImageJ, anything other than 8-bit is first scaled to 256 levels
+     between its min and max the way convertToByte(true) does it, and the threshold found on those levels is scaled
+     back to pixel values, so the masks are the ones Analyze Particles gives after Image>Adjust>Threshold.
+     */
+    public double[] getLevel(ImageProcessor ip, String method, boolean darkBackground){
+        if(method==null || method.equals(NONE)) return null;
+
+        boolean isByte = ip instanceof ByteProcessor, isShort = ip instanceof ShortProcessor;
+        double min = 0, max = 255, scale = 1;
+        if(!isByte){
+            double[] range = getMinMax(ip);
+            min = range[0];
+            max = range[1];
+            // TypeConverter uses whole numbers and one more level for 16-bit images
+            if(isShort) scale = 256.0/(max-min+1);
+            else scale = max>min ? 255.0/(max-min) : 0;
+        }
+
+        int[] histogram = getHistogram(ip, isByte, min, scale);
+        int level = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(method), histogram);
+
+        double lower = darkBackground ? Math.min(level+1, 255) : 0, upper = darkBackground ? 255 : level;
+        if(isByte) return new double[]{lower, upper};
+
+        // ImageProcessor.scaleAndSetThreshold
+        if(max<=min) return new double[]{min, min};
+        lower = lower==0 ? Double.NEGATIVE_INFINITY : min+lower/255.0*(max-min);
+        upper = upper==255 ? Double.POSITIVE_INFINITY : min+upper/255.0*(max-min);
+        // and ShortProcessor.setThreshold, which rounds to whole pixel values
+        if(isShort && lower>Double.NEGATIVE_INFINITY) lower = Math.round(lower);
+        if(isShort && upper<Double.POSITIVE_INFINITY) upper = Math.round(upper);
+        return new double[]{lower, upper};
+    }
+
+    // thresholds with a level from getLevel, e.g. one part of an image with the level of the whole
+    public BitMask toMask(ImageProcessor ip, double[] level){
+        if(level==null) return BitMask.fromProcessor(ip);
+        return binarise(ip, level[0], level[1]);
+    }
+
+    // the level convertToByte(true) gives v
+    private static int toByte(float v, boolean isByte, double min, double scale){
+        if(isByte) return (int) v;
+        double value = v-min;
+        if(value<0) value = 0;
+        int b = (int) (value*scale+0.5);
+        return b>255 ? 255 : b;
+    }
+
+    private interface RowBlock {
+        void run(int block, int y0, int y1);
+    }
+
+    private void forEachRowBlock(int height, RowBlock task){
+        int nBlocks = Math.min(nThreads, height);
+        Thread[] threads = new Thread[nBlocks];
+        for(int b=0; b<nBlocks; b++){
+            final int block = b, y0 = (int) ((long) height*b/nBlocks), y1 = (int) ((long) height*(b+1)/nBlocks);
+            threads[b] = new Thread(() -> task.run(block, y0, y1));
+        }
+        ThreadUtil.startAndJoin(threads);
+    }
+
+    private double[] getMinMax(ImageProcessor ip){
+        int w = ip.getWidth();
+        int nBlocks = Math.min(nThreads, ip.getHeight());
+        double[] mins = new double[nBlocks], maxs = new double[nBlocks];
+        forEachRowBlock(ip.getHeight(), (block, y0, y1) -> {
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for(int y=y0; y<y1; y++){
+                for(int x=0; x<w; x++){
+                    float v = ip.getf(x, y);
+                    if(v<min) min = v;
+                    if(v>max) max = v;
+                }
+            }
+            mins[block] = min;
+            maxs[block] = max;
+        });
+
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for(int b=0; b<nBlocks; b++){
+            min = Math.min(min, mins[b]);
+            max = Math.max(max, maxs[b]);
+        }
+        return new double[]{min, max};
+    }
+
+    int[] getHistogram(ImageProcessor ip, boolean isByte, double min, double scale){
+        int w = ip.getWidth();
+        int nBlocks = Math.min(nThreads, ip.getHeight());
+        int[][] partial = new int[nBlocks][256];
+        forEachRowBlock(ip.getHeight(), (block, y0, y1) -> {
+            int[] h = partial[block];
+            for(int y=y0; y<y1; y++){
+                for(int x=0; x<w; x++) h[toByte(ip.getf(x, y), isByte, min, scale)]++;
+            }
+        });
+
+        int[] histogram = new int[256];
+        for(int[] h:partial) for(int i=0; i<256; i++) histogram[i] += h[i];
+        return histogram;
+    }
+
+    // the test ParticleAnalyzer makes against the thresholds set on an image
+    private BitMask binarise(ImageProcessor ip, double lower, double upper){
+        int w = ip.getWidth();
+        BitMask mask = new BitMask(w, ip.getHeight());
+        // every row starts on a new word, so blocks of rows never write to the same long
+        forEachRowBlock(ip.getHeight(), (block, y0, y1) -> {
+            for(int y=y0; y<y1; y++){
+                for(int x=0; x<w; x++){
+                    float v = ip.getf(x, y);
+                    if(v>=lower && v<=upper) mask.set(x, y);
+                }
+            }
+        });
+        return mask;
+    }
+}
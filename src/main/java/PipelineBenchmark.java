@@ -0,0 +1,277 @@
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ End-to-end benchmark of getCellRois -> getNucleusRois -> matchNucleiToCells_v2 -> analyseAllRois_v2 on
+ SyntheticSlide images, once for every export combination, e.g.
+   java -cp <classpath> PipelineBenchmark run     report.tsv width=4096 height=4096 density=500 nuclei=2 images=3
+   java -cp <classpath> PipelineBenchmark compare baseline.tsv report.tsv
+ The report is tab separated: "#" lines hold the settings and JVM, then one row per export combination.
+ compare prints the ratios between two reports and exits with 1 if throughput dropped or peak heap grew by
+ more than the tolerance (default 10%), so it can gate a build.
+ */
+public class PipelineBenchmark {
+
+    public static final String[] EXPORTS = {"none", "tables", "crops", "rois", "all"};
+    public static final String[] COLUMNS = {"exports", "images", "cells", "nuclei", "seconds",
+            "imagesPerSec", "cellsPerSec", "peakHeapMB", "filesWritten", "bytesWritten"};
+
+    private final LinkedHashMap<String, String> settings = new LinkedHashMap<>();
+
+    public PipelineBenchmark(){
+        settings.put("width", "4096");
+        settings.put("height", "4096");
+        settings.put("density", "500");
+        settings.put("nuclei", "2");
+        settings.put("seed", "1");
+        settings.put("images", "3");
+        settings.put("warmup", "1");
+        settings.put("exports", String.join(",", EXPORTS));
+        settings.put("workDir", new File(System.getProperty("java.io.tmpdir"), "nucleus-counter-benchmark").getAbsolutePath());
+        settings.put("keepFiles", "false");
+        // NucleusCounter.setNucleusStripMemory in MB, 0 keeps the nuclei on the heap
+        settings.put("stripMB", "0");
+    }
+
+    public void set(String key, String value){
+        if(!settings.containsKey(key)) throw new IllegalArgumentException("Unknown benchmark setting "+key);
+        settings.put(key, value);
+    }
+
+    private int getInt(String key){
+        return Integer.parseInt(settings.get(key));
+    }
+
+    public static class Result {
+        public String exports;
+        public int nImages, nCells, nNuclei, nFiles;
+        public double seconds, peakHeapMB;
+        public long nBytes;
+
+        double[] toRow(){
+            return new double[]{nImages, nCells, nNuclei, seconds, nImages/seconds, nCells/seconds, peakHeapMB, nFiles, nBytes};
+        }
+    }
+
+    public ArrayList<Result> run() throws IOException {
+        SyntheticSlide slide = new SyntheticSlide(getInt("width"), getInt("height"),
+                Double.parseDouble(settings.get("density")), Double.parseDouble(settings.get("nuclei")), getInt("seed"));
+        File workDir = new File(settings.get("workDir"));
+
+        // warm-up images are analysed with every export so the JIT has seen all the code paths before timing
+        for(int i=0; i<getInt("warmup"); i++){
+            runImage(slide.generate(getInt("images")+i), "all", new File(workDir, "warmup"));
+        }
+        deleteRecursively(new File(workDir, "warmup"));
+
+        ArrayList<Result> results = new ArrayList<>();
+        for(String exports:settings.get("exports").split(",")){
+            File exportDir = new File(workDir, exports);
+            deleteRecursively(exportDir);
+
+            Result result = new Result();
+            result.exports = exports;
+            System.gc();
+            resetPeakHeap();
+            long elapsed = 0;
+            for(int i=0; i<getInt("images"); i++){
+                ImagePlus imp = slide.generate(i);
+                long start = System.nanoTime();
+                NucleusCounter nc = runImage(imp, exports, exportDir);
+                elapsed += System.nanoTime()-start;
+
+                result.nImages++;
+                result.nCells += nc.getCellRoiArray().length;
+                result.nNuclei += nc.getNNuclei();
+            }
+            result.seconds = elapsed/1e9;
+            result.peakHeapMB = getPeakHeap()/(1024.0*1024.0);
+
+            long[] written = countFiles(exportDir);
+            result.nFiles = (int) written[0];
+            result.nBytes = written[1];
+            if(!Boolean.parseBoolean(settings.get("keepFiles"))) deleteRecursively(exportDir);
+
+            System.out.println(String.format(Locale.ROOT, "%-6s %d images, %d cells in %.2f s (%.1f cells/s), peak heap %.0f MB, %d files",
+                    exports, result.nImages, result.nCells, result.seconds, result.nCells/result.seconds, result.peakHeapMB, result.nFiles));
+            results.add(result);
+        }
+        return results;
+    }
+
+    // the same calls and save layout as a GUI run on a two-channel binary image
+    private NucleusCounter runImage(ImagePlus imp, String exports, File exportDir) throws IOException {
+        boolean all = exports.equals("all");
+        boolean saveResults = all || exports.equals("tables");
+        boolean saveCrops = all || exports.equals("crops");
+        boolean saveRois = all || exports.equals("rois");
+
+        NucleusCounter nc = new NucleusCounter(imp, 1, 2);
+        nc.setShowResults(false);
+        nc.setNucleusStripMemory(Long.parseLong(settings.get("stripMB"))*(1<<20));
+        if(saveResults || saveCrops || saveRois){
+            String saveDir = NucleusCounter.makeDirectory(exportDir+File.separator+imp.getTitle()+" - results");
+            nc.setSavePaths(saveDir,
+                    saveRois ? NucleusCounter.makeDirectory(saveDir+File.separator+"local rois") : null,
+                    saveResults ? NucleusCounter.makeDirectory(saveDir+File.separator+"tables") : null,
+                    saveCrops ? NucleusCounter.makeDirectory(saveDir+File.separator+"crops") : null);
+        }
+        nc.setMeasurements(true, false, false, true, true, true, false, false);
+
+        nc.getCellRois(0, Double.POSITIVE_INFINITY, 0, 1, false, false);
+        nc.getNucleusRois(0, Double.POSITIVE_INFINITY, 0, 1, false, false);
+        nc.matchNucleiToCells_v2();
+        nc.analyseAllRois_v2();
+        return nc;
+    }
+
+    private static void resetPeakHeap(){
+        for(MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType()==MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    // sum of the per-pool peaks, so an upper bound on the heap actually in use at any one time
+    private static long getPeakHeap(){
+        long peak = 0;
+        for(MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType()==MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static long[] countFiles(File dir){
+        long[] counts = new long[2];
+        File[] files = dir.listFiles();
+        if(files==null) return counts;
+        for(File f:files){
+            if(f.isDirectory()){
+                long[] sub = countFiles(f);
+                counts[0] += sub[0];
+                counts[1] += sub[1];
+            }
+            else{
+                counts[0]++;
+                counts[1] += f.length();
+            }
+        }
+        return counts;
+    }
+
+    private static void deleteRecursively(File f){
+        File[] files = f.listFiles();
+        if(files!=null) for(File child:files) deleteRecursively(child);
+        f.delete();
+    }
+
+    public void writeReport(File report, List<Result> results) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(String key:settings.keySet()){
+            if(key.equals("workDir") || key.equals("keepFiles")) continue;
+            sb.append('#').append(key).append('\t').append(settings.get(key)).append('\n');
+        }
+        sb.append("#java\t").append(System.getProperty("java.version")).append('\n');
+        sb.append("#processors\t").append(Runtime.getRuntime().availableProcessors()).append('\n');
+        sb.append("#maxHeapMB\t").append(Runtime.getRuntime().maxMemory()/(1024*1024)).append('\n');
+
+        sb.append(String.join("\t", COLUMNS)).append('\n');
+        for(Result r:results){
+            sb.append(r.exports);
+            double[] row = r.toRow();
+            for(int c=0; c<row.length; c++){
+                // counts are written as integers, rates and times with enough digits to compare runs
+                if(c==0 || c==1 || c==2 || c==7 || c==8) sb.append('\t').append((long) row[c]);
+                else sb.append('\t').append(String.format(Locale.ROOT, "%.4f", row[c]));
+            }
+            sb.append('\n');
+        }
+        Files.write(report.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // settings ("#" lines) and rows keyed by export combination
+    static LinkedHashMap<String, String[]> readReport(File report, LinkedHashMap<String, String> reportSettings) throws IOException {
+        LinkedHashMap<String, String[]> rows = new LinkedHashMap<>();
+        for(String line:Files.readAllLines(report.toPath(), StandardCharsets.UTF_8)){
+            if(line.isEmpty()) continue;
+            String[] fields = line.split("\t");
+            if(line.startsWith("#")) reportSettings.put(fields[0].substring(1), fields.length>1 ? fields[1] : "");
+            else if(!fields[0].equals(COLUMNS[0])) rows.put(fields[0], fields);
+        }
+        return rows;
+    }
+
+    // returns true if the new report is within tolerance of the baseline for every shared export combination
+    public static boolean compare(File baseline, File report, double tolerance) throws IOException {
+        LinkedHashMap<String, String> baseSettings = new LinkedHashMap<>(), newSettings = new LinkedHashMap<>();
+        LinkedHashMap<String, String[]> baseRows = readReport(baseline, baseSettings);
+        LinkedHashMap<String, String[]> newRows = readReport(report, newSettings);
+
+        for(String key:baseSettings.keySet()){
+            // only the rows both reports have are compared, so a different list of exports doesn't matter
+            if(key.equals("exports")) continue;
+            if(!baseSettings.get(key).equals(newSettings.get(key))){
+                System.out.println("WARN: "+key+" differs ("+baseSettings.get(key)+" vs "+newSettings.get(key)+"), the runs may not be comparable");
+            }
+        }
+
+        int cellsPerSec = indexOf("cellsPerSec"), peakHeap = indexOf("peakHeapMB"), cells = indexOf("cells");
+        boolean ok = true;
+        for(String exports:baseRows.keySet()){
+            String[] b = baseRows.get(exports), n = newRows.get(exports);
+            if(n==null) continue;
+            double speed = Double.parseDouble(n[cellsPerSec])/Double.parseDouble(b[cellsPerSec]);
+            double heap = Double.parseDouble(n[peakHeap])/Double.parseDouble(b[peakHeap]);
+            boolean regressed = speed<1-tolerance || heap>1+tolerance;
+            if(!b[cells].equals(n[cells])){
+                System.out.println("WARN: "+exports+" found "+n[cells]+" cells, baseline found "+b[cells]);
+            }
+            System.out.println(String.format(Locale.ROOT, "%-6s throughput x%.3f  peak heap x%.3f%s",
+                    exports, speed, heap, regressed ? "  REGRESSION" : ""));
+            ok &= !regressed;
+        }
+        return ok;
+    }
+
+    private static int indexOf(String column){
+        for(int i=0; i<COLUMNS.length; i++) if(COLUMNS[i].equals(column)) return i;
+        return -1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length<2){
+            System.err.println("Usage: PipelineBenchmark run <report.tsv> [key=value ...] | compare <baseline.tsv> <report.tsv> [tolerance]");
+            System.exit(1);
+        }
+
+        switch(args[0]){
+            case "run":
+                PipelineBenchmark benchmark = new PipelineBenchmark();
+                for(int i=2; i<args.length; i++){
+                    int eq = args[i].indexOf('=');
+                    if(eq<0) throw new IllegalArgumentException("Expected key=value, got "+args[i]);
+                    benchmark.set(args[i].substring(0, eq), args[i].substring(eq+1));
+                }
+                benchmark.writeReport(new File(args[1]), benchmark.run());
+                break;
+            case "compare":
+                double tolerance = args.length>3 ? Double.parseDouble(args[3]) : 0.1;
+                if(!compare(new File(args[1]), new File(args[2]), tolerance)) System.exit(1);
+                break;
+            default:
+                System.err.println("Unknown command "+args[0]);
+                System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ KLL quantile sketch (Karnin, Lang & Liberty 2016). Values go into level 0; a level that fills up is sorted
+ and every other value, starting at a random offset, moves up a level with twice the weight. Capacities
+ shrink by 2/3 per level below the top, so memory stays around 3k values however many are added, and the
+ rank error of a quantile is about 1.7/k (1% for the default k=200). Sketches with the same k can be
+ merged in any order, which is what lets cells, images, threads and processes be summarised separately.
+ */
+public class QuantileSketch {
+
+    public static final int DEFAULT_K = 200;
+    private static final int MIN_CAPACITY = 8;
+
+    private final int k;
+    private final ArrayList<double[]> levels = new ArrayList<>();
+    private final ArrayList<Integer> sizes = new ArrayList<>();
+    private final Random random;
+    private long n = 0;
+    private int size = 0;
+
+    public QuantileSketch(){
+        this(DEFAULT_K);
+    }
+
+    public QuantileSketch(int k){
+        this.k = k;
+        // a fixed seed keeps a run reproducible; the offsets only have to be unbiased, not unpredictable
+        this.random = new Random(k);
+        addLevel();
+    }
+
+    private void addLevel(){
+        levels.add(new double[MIN_CAPACITY]);
+        sizes.add(0);
+    }
+
+    private int getCapacity(int level){
+        int depth = levels.size()-1-level;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(k*Math.pow(2.0/3.0, depth)));
+    }
+
+    private int getTotalCapacity(){
+        int total = 0;
+        for(int h=0; h<levels.size(); h++) total += getCapacity(h);
+        return total;
+    }
+
+    private void append(int level, double value){
+        double[] items = levels.get(level);
+        int s = sizes.get(level);
+        if(s==items.length) levels.set(level, items = Arrays.copyOf(items, 2*items.length));
+        items[s] = value;
+        sizes.set(level, s+1);
+        size++;
+    }
+
+    public void update(double value){
+        if(Double.isNaN(value)) return;
+        append(0, value);
+        n++;
+        if(size>=getTotalCapacity()) compress();
+    }
+
+    public void merge(QuantileSketch other){
+        if(other.k!=k) throw new IllegalArgumentException("Can't merge sketches with k="+k+" and k="+other.k);
+        while(levels.size()<other.levels.size()) addLevel();
+        for(int h=0; h<other.levels.size(); h++){
+            double[] items = other.levels.get(h);
+            for(int i=0, s=other.sizes.get(h); i<s; i++) append(h, items[i]);
+        }
+        n += other.n;
+        while(size>=getTotalCapacity()) compress();
+    }
+
+    // halves the lowest level that is over capacity into the level above it
+    private void compress(){
+        for(int h=0; h<levels.size(); h++){
+            int s = sizes.get(h);
+            if(s<getCapacity(h)) continue;
+            if(h+1==levels.size()) addLevel();
+
+            double[] items = levels.get(h);
+            Arrays.sort(items, 0, s);
+            // with an odd count the largest value stays behind, so weights always add up to n
+            int paired = s & ~1;
+            for(int i=random.nextInt(2); i<paired; i+=2) append(h+1, items[i]);
+            size -= paired;
+            if(paired<s) items[0] = items[s-1];
+            sizes.set(h, s-paired);
+            return;
+        }
+    }
+
+    public long getN(){
+        return n;
+    }
+
+    // the value at rank q*n, for q in [0, 1]; NaN for an empty sketch
+    public double getQuantile(double q){
+        if(n==0) return Double.NaN;
+        double[] values = new double[size];
+        long[] weights = new long[size];
+        int m = 0;
+        for(int h=0; h<levels.size(); h++){
+            double[] items = levels.get(h);
+            for(int i=0, s=sizes.get(h); i<s; i++){
+                values[m] = items[i];
+                weights[m++] = 1L << h;
+            }
+        }
+
+        Integer[] order = new Integer[m];
+        for(int i=0; i<m; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+        double rank = q*n;
+        long cumulative = 0;
+        for(int i:order){
+            cumulative += weights[i];
+            if(cumulative>=rank) return values[i];
+        }
+        return values[order[m-1]];
+    }
+
+    public double[] getQuantiles(double[] qs){
+        double[] out = new double[qs.length];
+        for(int i=0; i<qs.length; i++) out[i] = getQuantile(qs[i]);
+        return out;
+    }
+
+    // "k n level0 level1 ...", each level a comma separated list (empty levels are "-"), for writing to text files
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder();
+        sb.append(k).append(' ').append(n);
+        for(int h=0; h<levels.size(); h++){
+            sb.append(' ');
+            double[] items = levels.get(h);
+            int s = sizes.get(h);
+            if(s==0) sb.append('-');
+            for(int i=0; i<s; i++){
+                if(i>0) sb.append(',');
+                sb.append(items[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static QuantileSketch parse(String text){
+        String[] fields = text.trim().split(" ");
+        QuantileSketch sketch = new QuantileSketch(Integer.parseInt(fields[0]));
+        for(int h=0; h<fields.length-2; h++){
+            if(h>0) sketch.addLevel();
+            if(fields[h+2].equals("-")) continue;
+            for(String v:fields[h+2].split(",")) sketch.append(h, Double.parseDouble(v));
+        }
+        sketch.n = Long.parseLong(fields[1]);
+        return sketch;
+    }
+}
@@ -0,0 +1,389 @@
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ Everything analyseAllRois_v2 knows about one image, kept so cells can be filtered and re-exported later
+ without segmenting again: the per-cell summary and cell measurement columns, the per-nucleus measurement
+ columns, the cell -> nuclei mapping, every Roi (in RoiEncoder format) and both bit-packed masks for crops.
+ The file is one gzipped stream of columns. Queries are conjunctions such as
+   N nuclei in cell >= 3 && Area mean > 40
+ and each column gets a sorted index the first time it is queried, so a clause is a binary search.
+ */
+public class ResultStore {
+
+    public static final String FILE_NAME = "Results.ncstore";
+    private static final int MAGIC = 0x4e435253, VERSION = 1;
+    private static final Pattern CLAUSE = Pattern.compile("^(.+?)\\s*(>=|<=|==|!=|>|<)\\s*(\\S+)$");
+
+    private final String title;
+    private final Calibration calibration;
+    private final ArrayList<String> columns;
+    private final String[] cellNames;
+    private final LinkedHashMap<String, double[]> summaryColumns, cellColumns, nucleusColumns;
+    private final Roi[] cellRois, nucleusRois;
+    private final int[] firstChild, children;
+    private final BitMask maskCell, maskNuclei;
+    private final HashMap<String, int[]> sortedIndex = new HashMap<>();
+
+    ResultStore(String title, Calibration calibration, ArrayList<String> columns, String[] cellNames,
+                LinkedHashMap<String, double[]> summaryColumns, LinkedHashMap<String, double[]> cellColumns,
+                LinkedHashMap<String, double[]> nucleusColumns, Roi[] cellRois, Roi[] nucleusRois,
+                int[] firstChild, int[] children, BitMask maskCell, BitMask maskNuclei){
+        this.title = title;
+        this.calibration = calibration;
+        this.columns = columns;
+        this.cellNames = cellNames;
+        this.summaryColumns = summaryColumns;
+        this.cellColumns = cellColumns;
+        this.nucleusColumns = nucleusColumns;
+        this.cellRois = cellRois;
+        this.nucleusRois = nucleusRois;
+        this.firstChild = firstChild;
+        this.children = children;
+        this.maskCell = maskCell;
+        this.maskNuclei = maskNuclei;
+    }
+
+    // numeric columns of the summary table, i.e. everything but the cell name and the arrow
+    static LinkedHashMap<String, double[]> getSummaryColumns(ResultsTable summary){
+        LinkedHashMap<String, double[]> out = new LinkedHashMap<>();
+        for(String h:summary.getHeadings()){
+            if(h.equals("Cell name") || h.equals(" ")) continue;
+            out.put(h, summary.getColumnAsDoubles(summary.getColumnIndex(h)));
+        }
+        return out;
+    }
+
+    static int[][] getChildArrays(LinkedHashMap<Integer, int[]> cellNucleusMap, int nCells){
+        int[] firstChild = new int[nCells+1];
+        for(int i=0; i<nCells; i++) firstChild[i+1] = firstChild[i]+cellNucleusMap.get(i).length;
+        int[] children = new int[firstChild[nCells]];
+        for(int i=0; i<nCells; i++) System.arraycopy(cellNucleusMap.get(i), 0, children, firstChild[i], firstChild[i+1]-firstChild[i]);
+        return new int[][]{firstChild, children};
+    }
+
+    public void save(File file) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(title);
+            out.writeDouble(calibration.pixelWidth);
+            out.writeDouble(calibration.pixelHeight);
+            out.writeUTF(calibration.getUnit());
+
+            out.writeInt(columns.size());
+            for(String c:columns) out.writeUTF(c);
+
+            out.writeInt(cellNames.length);
+            for(String name:cellNames) out.writeUTF(name);
+            writeColumns(out, summaryColumns);
+            writeColumns(out, cellColumns);
+            writeRois(out, cellRois);
+
+            out.writeInt(nucleusRois.length);
+            writeColumns(out, nucleusColumns);
+            writeRois(out, nucleusRois);
+
+            for(int f:firstChild) out.writeInt(f);
+            for(int c:children) out.writeInt(c);
+
+            writeMask(out, maskCell);
+            writeMask(out, maskNuclei);
+        }
+    }
+
+    public static ResultStore load(File file) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))){
+            if(in.readInt()!=MAGIC) throw new IOException(file+" is not a result store");
+            int version = in.readInt();
+            if(version!=VERSION) throw new IOException(file+" has version "+version+", expected "+VERSION);
+
+            String title = in.readUTF();
+            Calibration calibration = new Calibration();
+            calibration.pixelWidth = in.readDouble();
+            calibration.pixelHeight = in.readDouble();
+            calibration.setUnit(in.readUTF());
+
+            ArrayList<String> columns = new ArrayList<>();
+            int nColumns = in.readInt();
+            for(int i=0; i<nColumns; i++) columns.add(in.readUTF());
+
+            int nCells = in.readInt();
+            String[] cellNames = new String[nCells];
+            for(int i=0; i<nCells; i++) cellNames[i] = in.readUTF();
+            LinkedHashMap<String, double[]> summaryColumns = readColumns(in, nCells);
+            LinkedHashMap<String, double[]> cellColumns = readColumns(in, nCells);
+            Roi[] cellRois = readRois(in, nCells);
+
+            int nNuclei = in.readInt();
+            LinkedHashMap<String, double[]> nucleusColumns = readColumns(in, nNuclei);
+            Roi[] nucleusRois = readRois(in, nNuclei);
+
+            int[] firstChild = new int[nCells+1];
+            for(int i=0; i<=nCells; i++) firstChild[i] = in.readInt();
+            int[] children = new int[firstChild[nCells]];
+            for(int i=0; i<children.length; i++) children[i] = in.readInt();
+
+            BitMask maskCell = readMask(in);
+            BitMask maskNuclei = readMask(in);
+            return new ResultStore(title, calibration, columns, cellNames, summaryColumns, cellColumns, nucleusColumns,
+                    cellRois, nucleusRois, firstChild, children, maskCell, maskNuclei);
+        }
+    }
+
+    private static void writeColumns(DataOutputStream out, LinkedHashMap<String, double[]> columns) throws IOException {
+        out.writeInt(columns.size());
+        for(Map.Entry<String, double[]> e:columns.entrySet()){
+            out.writeUTF(e.getKey());
+            for(double v:e.getValue()) out.writeDouble(v);
+        }
+    }
+
+    private static LinkedHashMap<String, double[]> readColumns(DataInputStream in, int n) throws IOException {
+        LinkedHashMap<String, double[]> columns = new LinkedHashMap<>();
+        int nColumns = in.readInt();
+        for(int c=0; c<nColumns; c++){
+            String name = in.readUTF();
+            double[] values = new double[n];
+            for(int i=0; i<n; i++) values[i] = in.readDouble();
+            columns.put(name, values);
+        }
+        return columns;
+    }
+
+    private static void writeRois(DataOutputStream out, Roi[] rois) throws IOException {
+        for(Roi r:rois){
+            byte[] bytes = RoiEncoder.saveAsByteArray(r);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static Roi[] readRois(DataInputStream in, int n) throws IOException {
+        Roi[] rois = new Roi[n];
+        for(int i=0; i<n; i++){
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            rois[i] = RoiDecoder.openFromByteArray(bytes);
+        }
+        return rois;
+    }
+
+    private static void writeMask(DataOutputStream out, BitMask mask) throws IOException {
+        out.writeInt(mask.getWidth());
+        out.writeInt(mask.getHeight());
+        for(long w:mask.getWords()) out.writeLong(w);
+    }
+
+    private static BitMask readMask(DataInputStream in) throws IOException {
+        BitMask mask = new BitMask(in.readInt(), in.readInt());
+        long[] words = mask.getWords();
+        for(int i=0; i<words.length; i++) words[i] = in.readLong();
+        return mask;
+    }
+
+    // summary columns by their table heading; cell measurements as "Cell <measurement>", e.g. "Cell Circ."
+    public double[] getCellColumn(String name){
+        if(summaryColumns.containsKey(name)) return summaryColumns.get(name);
+        if(name.startsWith("Cell ")) return cellColumns.get(name.substring(5));
+        return null;
+    }
+
+    public ArrayList<String> getCellColumnNames(){
+        ArrayList<String> names = new ArrayList<>(summaryColumns.keySet());
+        for(String c:cellColumns.keySet()) names.add("Cell "+c);
+        return names;
+    }
+
+    // cells matching every clause of the predicate; an empty predicate selects all cells
+    public BitSet select(String predicate){
+        BitSet selected = new BitSet(cellNames.length);
+        selected.set(0, cellNames.length);
+        if(predicate==null || predicate.trim().isEmpty()) return selected;
+
+        for(String clause:predicate.split("&&|(?i)\\s+and\\s+")){
+            Matcher m = CLAUSE.matcher(clause.trim());
+            if(!m.matches()) throw new IllegalArgumentException("Could not read \""+clause.trim()+"\", expected <column> <op> <number>");
+            String column = m.group(1).trim();
+            if(getCellColumn(column)==null) throw new IllegalArgumentException("No cell column called \""+column+"\"");
+            selected.and(selectClause(column, m.group(2), Double.parseDouble(m.group(3))));
+            if(selected.isEmpty()) break;
+        }
+        return selected;
+    }
+
+    private BitSet selectClause(String column, String op, double value){
+        double[] values = getCellColumn(column);
+        int[] order = getSortedIndex(column);
+        // NaN (e.g. the mean area of a cell with no nuclei) sorts last and never matches
+        int nValid = lowerBound(values, order, Double.NaN);
+        int lo = lowerBound(values, order, value), hi = upperBound(values, order, value);
+        lo = Math.min(lo, nValid);
+        hi = Math.min(hi, nValid);
+
+        BitSet out = new BitSet(values.length);
+        switch(op){
+            case ">":  setRange(out, order, hi, nValid); break;
+            case ">=": setRange(out, order, lo, nValid); break;
+            case "<":  setRange(out, order, 0, lo); break;
+            case "<=": setRange(out, order, 0, hi); break;
+            case "==": setRange(out, order, lo, hi); break;
+            case "!=": setRange(out, order, 0, lo); setRange(out, order, hi, nValid); break;
+        }
+        return out;
+    }
+
+    private static void setRange(BitSet out, int[] order, int from, int to){
+        for(int i=from; i<to; i++) out.set(order[i]);
+    }
+
+    // cell indices ordered by the column value, with Double.compare so NaN ends up last
+    private int[] getSortedIndex(String column){
+        int[] order = sortedIndex.get(column);
+        if(order!=null) return order;
+
+        double[] values = getCellColumn(column);
+        Integer[] boxed = new Integer[values.length];
+        for(int i=0; i<values.length; i++) boxed[i] = i;
+        Arrays.sort(boxed, (a, b) -> Double.compare(values[a], values[b]));
+        order = new int[values.length];
+        for(int i=0; i<values.length; i++) order[i] = boxed[i];
+        sortedIndex.put(column, order);
+        return order;
+    }
+
+    // first position whose value is >= v
+    private static int lowerBound(double[] values, int[] order, double v){
+        int lo = 0, hi = order.length;
+        while(lo<hi){
+            int mid = (lo+hi) >>> 1;
+            if(Double.compare(values[order[mid]], v)<0) lo = mid+1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // first position whose value is > v
+    private static int upperBound(double[] values, int[] order, double v){
+        int lo = 0, hi = order.length;
+        while(lo<hi){
+            int mid = (lo+hi) >>> 1;
+            if(Double.compare(values[order[mid]], v)<=0) lo = mid+1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // writes tables, crops and/or Roi sets for the selected cells only, laid out like a normal run in
+    // "<dir>/<title> - results"; returns the summary table of the selected cells
+    public ResultsTable export(BitSet cells, String dir, boolean saveResults, boolean saveCrops, boolean saveRois) throws IOException {
+        NucleusCounter nc = NucleusCounter.fromStore(this, cells);
+        nc.setShowResults(false);
+        // a re-export is quick to repeat, and a checkpoint would copy the whole store into the export
+        nc.setCheckpointing(false);
+        String saveDir = NucleusCounter.makeDirectory(dir+File.separator+title+" - results");
+        nc.setSavePaths(saveDir,
+                saveRois ? NucleusCounter.makeDirectory(saveDir+File.separator+"local rois") : null,
+                saveResults ? NucleusCounter.makeDirectory(saveDir+File.separator+"tables") : null,
+                saveCrops ? NucleusCounter.makeDirectory(saveDir+File.separator+"crops") : null);
+        nc.analyseAllRois_v2();
+        ResultsTable summary = nc.getSummaryTable();
+        summary.save(saveDir+File.separator+"Summary Results.csv");
+        return summary;
+    }
+
+    public String getTitle(){
+        return title;
+    }
+
+    public int getNCells(){
+        return cellNames.length;
+    }
+
+    public String getCellName(int i){
+        return cellNames[i];
+    }
+
+    Calibration getCalibration(){
+        return calibration;
+    }
+
+    ArrayList<String> getColumns(){
+        return columns;
+    }
+
+    LinkedHashMap<String, double[]> getCellMeasurements(){
+        return cellColumns;
+    }
+
+    LinkedHashMap<String, double[]> getNucleusMeasurements(){
+        return nucleusColumns;
+    }
+
+    Roi[] getCellRois(){
+        return cellRois;
+    }
+
+    // Rois are decoded fresh each time, because exporting crops moves the nucleus Rois
+    Roi[] getNucleusRois(){
+        Roi[] copies = new Roi[nucleusRois.length];
+        for(int i=0; i<copies.length; i++) copies[i] = (Roi) nucleusRois[i].clone();
+        return copies;
+    }
+
+    int[] getNuclei(int cell){
+        return Arrays.copyOfRange(children, firstChild[cell], firstChild[cell+1]);
+    }
+
+    BitMask getMaskCell(){
+        return maskCell;
+    }
+
+    BitMask getMaskNuclei(){
+        return maskNuclei;
+    }
+
+    /*
+     Command line access, e.g.
+       java -cp <classpath> ResultStore columns "<dir>/Results.ncstore"
+       java -cp <classpath> ResultStore query   "<dir>/Results.ncstore" "N nuclei in cell >= 3 && Area mean > 40"
+       java -cp <classpath> ResultStore export  "<dir>/Results.ncstore" "N nuclei in cell >= 3" <output dir> tables,crops,rois
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length<2){
+            System.err.println("Usage: ResultStore columns|query|export <store> [predicate] [output dir] [tables,crops,rois]");
+            System.exit(1);
+        }
+        ResultStore store = load(new File(args[1]));
+        switch(args[0]){
+            case "columns":
+                for(String c:store.getCellColumnNames()) System.out.println(c);
+                break;
+            case "query":
+                BitSet cells = store.select(args.length>2 ? args[2] : "");
+                for(int i=cells.nextSetBit(0); i>=0; i=cells.nextSetBit(i+1)) System.out.println(store.getCellName(i));
+                System.err.println(cells.cardinality()+" of "+store.getNCells()+" cells match");
+                break;
+            case "export":
+                List<String> exports = Arrays.asList(args[4].split(","));
+                BitSet selected = store.select(args[2]);
+                store.export(selected, args[3], exports.contains("tables"), exports.contains("crops"), exports.contains("rois"));
+                System.out.println("Exported "+selected.cardinality()+" of "+store.getNCells()+" cells");
+                break;
+            default:
+                System.err.println("Unknown command "+args[0]);
+                System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,282 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.Opener;
+
+import java.awt.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/*
+ Work units for a sharded run live in one directory on a filesystem every worker can see:
+   settings.properties  analysis settings, same meaning as the GUI options
+   manifest.tsv         one line per unit: id, image path and either "-" (whole image) or the tile x,y,w,h;
+                        for a tile also the lower,upper thresholds of the whole image for cells and nuclei, as
+                        ParallelThresholder.getLevel gives them ("-" for an already binary channel)
+   locks/               <unit>.lock, created atomically by the worker that claims the unit and touched every
+                        HEARTBEAT_MILLIS while the worker is busy with it
+   partial/             per-unit partial results, plus <unit>.done once they are complete
+ */
+public class ShardManifest {
+
+    public static final String SETTINGS = "settings.properties", MANIFEST = "manifest.tsv";
+    // a lock not touched for STALE_MILLIS is taken to belong to a dead worker
+    public static final long HEARTBEAT_MILLIS = 60*1000, STALE_MILLIS = 10*60*1000;
+
+    private final File shardDir, locksDir, partialDir;
+    private final Properties settings;
+    private final ArrayList<Unit> units;
+
+    private ShardManifest(File shardDir, Properties settings, ArrayList<Unit> units){
+        this.shardDir = shardDir;
+        this.locksDir = new File(shardDir, "locks");
+        this.partialDir = new File(shardDir, "partial");
+        this.settings = settings;
+        this.units = units;
+    }
+
+    public static class Unit {
+        public final int id;
+        public final String imagePath;
+        public final Rectangle tile;
+        // thresholds of the whole image, so a tile can be thresholded on its own; null if the channel is binary
+        public final double[] cellLevel, nucleusLevel;
+
+        Unit(int id, String imagePath, Rectangle tile, double[] cellLevel, double[] nucleusLevel){
+            this.id = id;
+            this.imagePath = imagePath;
+            this.tile = tile;
+            this.cellLevel = cellLevel;
+            this.nucleusLevel = nucleusLevel;
+        }
+
+        public String getName(){
+            return String.format("unit-%05d", id);
+        }
+
+        public boolean isTile(){
+            return tile!=null;
+        }
+    }
+
+    public static Properties defaultSettings(){
+        Properties p = new Properties();
+        p.setProperty("cellChannel", "1");
+        p.setProperty("nucleusChannel", "2");
+        p.setProperty("getArea", "true");
+        p.setProperty("getCentroid", "false");
+        p.setProperty("getPerimeter", "false");
+        p.setProperty("getEllipse", "true");
+        p.setProperty("getCirc", "true");
+        p.setProperty("getAR", "true");
+        p.setProperty("getRound", "false");
+        p.setProperty("getSolidity", "false");
+        p.setProperty("saveResults", "false");
+        p.setProperty("saveImages", "false");
+        p.setProperty("saveRoiSets", "false");
+        for(String c:new String[]{"cell", "nuclei"}){
+            p.setProperty(c+".minSize", "0");
+            p.setProperty(c+".maxSize", "Infinity");
+            p.setProperty(c+".minCirc", "0");
+            p.setProperty(c+".maxCirc", "1");
+            p.setProperty(c+".excludeEdge", "false");
+            p.setProperty(c+".includeHoles", "false");
+            p.setProperty(c+".threshold", ParallelThresholder.NONE);
+            p.setProperty(c+".split", "false");
+        }
+        p.setProperty("darkBackground", "true");
+        p.setProperty("tileSize", "0");
+        p.setProperty("tileHalo", "0");
+        return p;
+    }
+
+    // tileSize<=0 gives one unit per image; otherwise each image is cut into tileSize x tileSize tiles
+    public static ShardManifest create(File shardDir, Properties userSettings, List<String> imagePaths) throws IOException {
+        Properties settings = defaultSettings();
+        settings.putAll(userSettings);
+        if(settings.getProperty("outputDir")==null){
+            settings.setProperty("outputDir", new File(shardDir, "output").getAbsolutePath());
+        }
+
+        int tileSize = Integer.parseInt(settings.getProperty("tileSize"));
+        if(tileSize>0 && (Boolean.parseBoolean(settings.getProperty("saveImages")) ||
+                Boolean.parseBoolean(settings.getProperty("saveRoiSets")))){
+            throw new IllegalArgumentException("Crops and Roi sets can only be saved when whole images are the work units (tileSize=0)");
+        }
+
+        String cellThreshold = settings.getProperty("cell.threshold"), nucleusThreshold = settings.getProperty("nuclei.threshold");
+        boolean thresholded = !cellThreshold.equals(ParallelThresholder.NONE) || !nucleusThreshold.equals(ParallelThresholder.NONE);
+
+        ArrayList<Unit> units = new ArrayList<>();
+        for(String path:imagePaths){
+            if(tileSize<=0){
+                units.add(new Unit(units.size(), path, null, null, null));
+                continue;
+            }
+            Dimension size;
+            double[] cellLevel = null, nucleusLevel = null;
+            if(thresholded){
+                // one pass over the whole image here saves every tile from making its own
+                ImagePlus imp = IJ.openImage(path);
+                if(imp==null) throw new IllegalArgumentException("Could not open "+path);
+                size = new Dimension(imp.getWidth(), imp.getHeight());
+                ParallelThresholder thresholder = new ParallelThresholder();
+                boolean darkBackground = Boolean.parseBoolean(settings.getProperty("darkBackground"));
+                cellLevel = thresholder.getLevel(imp.getImageStack().getProcessor(Integer.parseInt(settings.getProperty("cellChannel"))), cellThreshold, darkBackground);
+                nucleusLevel = thresholder.getLevel(imp.getImageStack().getProcessor(Integer.parseInt(settings.getProperty("nucleusChannel"))), nucleusThreshold, darkBackground);
+                imp.close();
+            }
+            else size = getImageSize(path);
+            for(int y=0; y<size.height; y+=tileSize){
+                for(int x=0; x<size.width; x+=tileSize){
+                    Rectangle tile = new Rectangle(x, y, Math.min(tileSize, size.width-x), Math.min(tileSize, size.height-y));
+                    units.add(new Unit(units.size(), path, tile, cellLevel, nucleusLevel));
+                }
+            }
+        }
+
+        ShardManifest manifest = new ShardManifest(shardDir, settings, units);
+        manifest.write();
+        return manifest;
+    }
+
+    public static ShardManifest load(File shardDir) throws IOException {
+        Properties settings = new Properties();
+        try(Reader r = Files.newBufferedReader(new File(shardDir, SETTINGS).toPath(), StandardCharsets.UTF_8)){
+            settings.load(r);
+        }
+
+        ArrayList<Unit> units = new ArrayList<>();
+        for(String line:Files.readAllLines(new File(shardDir, MANIFEST).toPath(), StandardCharsets.UTF_8)){
+            if(line.isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.split("\t");
+            Rectangle tile = null;
+            if(!fields[2].equals("-")){
+                String[] t = fields[2].split(",");
+                tile = new Rectangle(Integer.parseInt(t[0]), Integer.parseInt(t[1]), Integer.parseInt(t[2]), Integer.parseInt(t[3]));
+            }
+            double[] cellLevel = fields.length>4 ? parseLevel(fields[3]) : null;
+            double[] nucleusLevel = fields.length>4 ? parseLevel(fields[4]) : null;
+            units.add(new Unit(Integer.parseInt(fields[0]), fields[1], tile, cellLevel, nucleusLevel));
+        }
+        return new ShardManifest(shardDir, settings, units);
+    }
+
+    private void write() throws IOException {
+        shardDir.mkdirs();
+        locksDir.mkdirs();
+        partialDir.mkdirs();
+
+        try(Writer w = Files.newBufferedWriter(new File(shardDir, SETTINGS).toPath(), StandardCharsets.UTF_8)){
+            settings.store(w, "NucleusCounter shard settings");
+        }
+
+        StringBuilder sb = new StringBuilder("# id\timage\ttile\tcell level\tnucleus level\n");
+        for(Unit u:units){
+            sb.append(u.id).append('\t').append(u.imagePath).append('\t');
+            if(u.tile==null) sb.append('-');
+            else sb.append(u.tile.x).append(',').append(u.tile.y).append(',').append(u.tile.width).append(',').append(u.tile.height);
+            sb.append('\t').append(formatLevel(u.cellLevel)).append('\t').append(formatLevel(u.nucleusLevel));
+            sb.append('\n');
+        }
+        writeAtomically(new File(shardDir, MANIFEST), sb.toString());
+    }
+
+    private static String formatLevel(double[] level){
+        return level==null ? "-" : level[0]+","+level[1];
+    }
+
+    // "-", or levels in the form of an older version, which the worker finds again
+    private static double[] parseLevel(String field){
+        String[] f = field.split(",");
+        if(f.length!=2) return null;
+        return new double[]{Double.parseDouble(f[0]), Double.parseDouble(f[1])};
+    }
+
+    private static Dimension getImageSize(String path){
+        FileInfo[] info = Opener.getTiffFileInfo(path);
+        if(info!=null && info.length>0) return new Dimension(info[0].width, info[0].height);
+
+        ImagePlus imp = IJ.openImage(path);
+        if(imp==null) throw new IllegalArgumentException("Could not open "+path);
+        Dimension size = new Dimension(imp.getWidth(), imp.getHeight());
+        imp.close();
+        return size;
+    }
+
+    // createNewFile is atomic, so only one worker can ever create a given lock
+    public boolean claim(Unit unit, String workerId) throws IOException {
+        File lock = new File(locksDir, unit.getName()+".lock");
+        if(!lock.createNewFile()) return false;
+        Files.write(lock.toPath(), workerId.getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    // shows that the worker holding the lock of unit is still alive
+    public void heartbeat(Unit unit){
+        new File(locksDir, unit.getName()+".lock").setLastModified(System.currentTimeMillis());
+    }
+
+    public boolean isDone(Unit unit){
+        return new File(partialDir, unit.getName()+".done").exists();
+    }
+
+    public void markDone(Unit unit, String workerId) throws IOException {
+        writeAtomically(new File(partialDir, unit.getName()+".done"), workerId+"\n");
+    }
+
+    // releases units whose worker died before finishing, so they can be claimed again; a lock touched within
+    // maxAgeMillis still has a live worker and is left alone, so requeue is safe to run while workers are busy
+    // as long as maxAgeMillis is well above HEARTBEAT_MILLIS (and the clock skew between nodes)
+    public int requeue(long maxAgeMillis){
+        int n = 0, nBusy = 0;
+        long now = System.currentTimeMillis();
+        for(Unit u:units){
+            File lock = new File(locksDir, u.getName()+".lock");
+            if(!lock.exists() || isDone(u)) continue;
+            if(now-lock.lastModified()<maxAgeMillis) nBusy++;
+            else if(lock.delete()) n++;
+        }
+        if(nBusy>0) IJ.log(nBusy+" unfinished work units are still held by live workers and were left locked");
+        return n;
+    }
+
+    public File getPartialFile(Unit unit, String suffix){
+        return new File(partialDir, unit.getName()+"-"+suffix);
+    }
+
+    public static void writeAtomically(File target, String contents) throws IOException {
+        File tmp = new File(target.getParentFile(), target.getName()+".tmp");
+        Files.write(tmp.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public File getShardDir(){
+        return shardDir;
+    }
+
+    public ArrayList<Unit> getUnits(){
+        return units;
+    }
+
+    public String getSetting(String key){
+        return settings.getProperty(key);
+    }
+
+    public int getInt(String key){
+        return Integer.parseInt(settings.getProperty(key));
+    }
+
+    public double getDouble(String key){
+        return Double.parseDouble(settings.getProperty(key));
+    }
+
+    public boolean getBoolean(String key){
+        return Boolean.parseBoolean(settings.getProperty(key));
+    }
+}
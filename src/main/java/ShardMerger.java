@@ -0,0 +1,159 @@
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+public class ShardMerger {
+
+    private final ShardManifest manifest;
+
+    public ShardMerger(ShardManifest manifest){
+        this.manifest = manifest;
+    }
+
+    private static class Row {
+        final long keyY, keyX;
+        final int centreY;
+        final String[] values;
+
+        Row(String[] fields, int nKeys){
+            this.keyY = Long.parseLong(fields[0]);
+            this.keyX = Long.parseLong(fields[1]);
+            this.centreY = nKeys>2 ? Integer.parseInt(fields[2]) : 0;
+            this.values = Arrays.copyOfRange(fields, nKeys, fields.length);
+        }
+
+        long key(){
+            return (keyY << 32) | keyX;
+        }
+    }
+
+    private static class Table {
+        String title;
+        int imageHeight;
+        String[] headings;
+        ArrayList<Row> rows = new ArrayList<>();
+    }
+
+    // images are written in manifest order, and within an image everything is sorted by raster key,
+    // so the output does not depend on which worker finished which unit first
+    public void merge() throws IOException {
+        int nUnfinished = 0;
+        for(ShardManifest.Unit unit:manifest.getUnits()) if(!manifest.isDone(unit)) nUnfinished++;
+        if(nUnfinished>0) throw new IOException(nUnfinished+" work units have not finished yet");
+
+        LinkedHashMap<String, ArrayList<ShardManifest.Unit>> unitsPerImage = new LinkedHashMap<>();
+        for(ShardManifest.Unit unit:manifest.getUnits()){
+            unitsPerImage.computeIfAbsent(unit.imagePath, k -> new ArrayList<>()).add(unit);
+        }
+
+        DatasetStatistics statistics = new DatasetStatistics();
+        for(ArrayList<ShardManifest.Unit> units:unitsPerImage.values()) statistics.merge(mergeImage(units));
+        statistics.saveReport(NucleusCounter.makeDirectory(manifest.getSetting("outputDir")));
+    }
+
+    // returns the statistics of the image, for the dataset-wide report
+    private DatasetStatistics mergeImage(ArrayList<ShardManifest.Unit> units) throws IOException {
+        Table cells = null;
+        DatasetStatistics statistics = new DatasetStatistics();
+        ArrayList<Row> nuclei = new ArrayList<>();
+        Table members = null;
+
+        for(ShardManifest.Unit unit:units){
+            Table c = readTable(manifest.getPartialFile(unit, "cells.tsv"), 3);
+            if(cells==null) cells = c;
+            else cells.rows.addAll(c.rows);
+
+            nuclei.addAll(readTable(manifest.getPartialFile(unit, "nuclei.tsv"), 3).rows);
+            statistics.merge(DatasetStatistics.load(manifest.getPartialFile(unit, "stats.tsv")));
+
+            File membersFile = manifest.getPartialFile(unit, "members.tsv");
+            if(membersFile.exists()){
+                Table m = readTable(membersFile, 4);
+                if(members==null) members = m;
+                else members.rows.addAll(m.rows);
+            }
+        }
+
+        Comparator<Row> rasterOrder = Comparator.comparingLong(Row::key);
+        cells.rows.sort(rasterOrder);
+        nuclei.sort(rasterOrder);
+
+        String[] cellNames = new String[cells.rows.size()];
+        for(int i=0; i<cellNames.length; i++){
+            cellNames[i] = TableScraper.getRoiLabel(i+1, cells.rows.get(i).centreY, cells.imageHeight);
+        }
+
+        String saveDir = NucleusCounter.makeDirectory(ShardWorker.getResultsDir(manifest, cells.title));
+        ResultsTable rt = new ResultsTable();
+        for(int i=0; i<cellNames.length; i++){
+            Row row = cells.rows.get(i);
+            rt.incrementCounter();
+            rt.addValue("Cell name", cellNames[i]);
+            for(int h=0; h<cells.headings.length; h++){
+                if(h==1) rt.addValue(" ", "-->");
+                rt.addValue(cells.headings[h], Double.parseDouble(row.values[h]));
+            }
+        }
+        rt.save(saveDir+File.separator+"Summary Results.csv");
+
+        if(members!=null) writeCellTables(saveDir, cells, cellNames, nuclei, members);
+        statistics.saveReport(saveDir);
+        return statistics;
+    }
+
+    // rebuilds the per-cell tables of analyseCrop_v2 with whole-image nucleus names
+    private void writeCellTables(String saveDir, Table cells, String[] cellNames, ArrayList<Row> nuclei, Table members){
+        HashMap<Long, String> nucleusNames = new HashMap<>();
+        for(int i=0; i<nuclei.size(); i++){
+            Row n = nuclei.get(i);
+            nucleusNames.put(n.key(), TableScraper.getRoiLabel(i+1, n.centreY, cells.imageHeight));
+        }
+
+        HashMap<Long, ArrayList<Row>> membersPerCell = new HashMap<>();
+        for(Row m:members.rows) membersPerCell.computeIfAbsent(m.key(), k -> new ArrayList<>()).add(m);
+
+        String resultsDir = NucleusCounter.makeDirectory(saveDir+File.separator+"tables");
+        for(int i=0; i<cellNames.length; i++){
+            ResultsTable rt = new ResultsTable();
+            ArrayList<Row> contained = membersPerCell.getOrDefault(cells.rows.get(i).key(), new ArrayList<>());
+            contained.sort(Comparator.comparingLong(ShardMerger::nucleusKey));
+            for(Row m:contained){
+                rt.incrementCounter();
+                String name = nucleusNames.get(nucleusKey(m));
+                for(int h=0; h<members.headings.length; h++){
+                    rt.addValue("Nucleus name", name);
+                    rt.addValue(members.headings[h], Double.parseDouble(m.values[h+2]));
+                }
+            }
+            rt.save(resultsDir+File.separator+cellNames[i]+".csv");
+        }
+    }
+
+    private static long nucleusKey(Row m){
+        return (Long.parseLong(m.values[0]) << 32) | Long.parseLong(m.values[1]);
+    }
+
+    // members rows keep the nucleus key in the first two value columns
+    private static Table readTable(File file, int nKeys) throws IOException {
+        Table table = new Table();
+        boolean isMembers = nKeys==4;
+        for(String line:Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)){
+            String[] fields = line.split("\t", -1);
+            if(line.startsWith("#")){
+                if(fields[0].equals("#title")) table.title = fields[1];
+                else if(fields[0].equals("#imageHeight")) table.imageHeight = Integer.parseInt(fields[1]);
+            }
+            else if(table.headings==null){
+                table.headings = Arrays.copyOfRange(fields, nKeys, fields.length);
+            }
+            else if(!line.isEmpty()){
+                table.rows.add(new Row(fields, isMembers ? 2 : nKeys));
+            }
+        }
+        return table;
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+
+/*
+ Command line entry point for sharded runs, e.g.
+   java -cp <classpath> ShardRunner plan    /shared/run1 settings.properties a.tif b.tif ...
+   java -cp <classpath> ShardRunner work    /shared/run1            (start as many of these as you like, on any node)
+   java -cp <classpath> ShardRunner merge   /shared/run1
+   java -cp <classpath> ShardRunner requeue /shared/run1 [minutes]  (release units left locked by a crashed worker)
+   java -cp <classpath> ShardRunner local   /shared/run1 4          (start 4 worker JVMs on this machine, then merge)
+ Workers can run headless; TableScraper then collects particles without a RoiManager window.
+ A busy worker touches its lock every minute, and requeue only releases locks untouched for longer than
+ [minutes] (default 10), so it can be run while other workers are still going.
+ */
+public class ShardRunner {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length<2) exitWithUsage("plan|work|merge|requeue|local <shard dir> ...");
+        File shardDir = new File(args[1]);
+
+        switch(args[0]){
+            case "plan":
+                if(args.length<4) exitWithUsage("plan <shard dir> <settings.properties or -> <image> ...");
+                Properties settings = new Properties();
+                if(!args[2].equals("-")){
+                    try(Reader r = Files.newBufferedReader(new File(args[2]).toPath(), StandardCharsets.UTF_8)){
+                        settings.load(r);
+                    }
+                }
+                ArrayList<String> images = new ArrayList<>(Arrays.asList(args).subList(3, args.length));
+                ShardManifest manifest = ShardManifest.create(shardDir, settings, images);
+                System.out.println("Wrote "+manifest.getUnits().size()+" work units to "+shardDir);
+                break;
+            case "work":
+                String workerId = args.length>2 ? args[2] : ManagementFactory.getRuntimeMXBean().getName();
+                int n = new ShardWorker(ShardManifest.load(shardDir), workerId).run();
+                System.out.println(workerId+" processed "+n+" work units");
+                break;
+            case "merge":
+                new ShardMerger(ShardManifest.load(shardDir)).merge();
+                break;
+            case "requeue":
+                if(args.length>2 && !isNumber(args[2])) exitWithUsage("requeue <shard dir> [minutes]");
+                long maxAge = args.length>2 ? (long) (Double.parseDouble(args[2])*60*1000) : ShardManifest.STALE_MILLIS;
+                System.out.println("Released "+ShardManifest.load(shardDir).requeue(maxAge)+" work units");
+                break;
+            case "local":
+                if(args.length<3 || !args[2].matches("[1-9][0-9]{0,5}")) exitWithUsage("local <shard dir> <number of workers>");
+                runLocal(shardDir, Integer.parseInt(args[2]));
+                break;
+            default:
+                System.err.println("Unknown command "+args[0]);
+                System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void exitWithUsage(String arguments){
+        System.err.println("Usage: ShardRunner "+arguments);
+        System.exit(1);
+    }
+
+    private static boolean isNumber(String s){
+        try{
+            Double.parseDouble(s);
+            return true;
+        }
+        catch(NumberFormatException e){
+            return false;
+        }
+    }
+
+    private static void runLocal(File shardDir, int nWorkers) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+        String classpath = System.getProperty("java.class.path");
+
+        Process[] workers = new Process[nWorkers];
+        for(int i=0; i<nWorkers; i++){
+            workers[i] = new ProcessBuilder(java, "-cp", classpath, ShardRunner.class.getName(),
+                    "work", shardDir.getAbsolutePath(), "local-"+i).inheritIO().start();
+        }
+        for(int i=0; i<nWorkers; i++){
+            int exit = workers[i].waitFor();
+            if(exit!=0) throw new IOException("Worker local-"+i+" exited with code "+exit);
+        }
+
+        new ShardMerger(ShardManifest.load(shardDir)).merge();
+    }
+}
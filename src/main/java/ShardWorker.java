@@ -0,0 +1,330 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+
+public class ShardWorker {
+
+    private final ShardManifest manifest;
+    private final String workerId;
+
+    public ShardWorker(ShardManifest manifest, String workerId){
+        this.manifest = manifest;
+        this.workerId = workerId;
+    }
+
+    public int run() throws IOException {
+        int nProcessed = 0;
+        for(ShardManifest.Unit unit:manifest.getUnits()){
+            if(manifest.isDone(unit) || !manifest.claim(unit, workerId)) continue;
+            IJ.log(workerId+": processing "+unit.getName()+" ("+unit.imagePath+")");
+            Timer heartbeat = new Timer(workerId+"-heartbeat", true);
+            heartbeat.schedule(new TimerTask(){
+                @Override
+                public void run(){
+                    manifest.heartbeat(unit);
+                }
+            }, ShardManifest.HEARTBEAT_MILLIS, ShardManifest.HEARTBEAT_MILLIS);
+            try{
+                process(unit);
+            }
+            finally{
+                heartbeat.cancel();
+            }
+            manifest.markDone(unit, workerId);
+            nProcessed++;
+        }
+        return nProcessed;
+    }
+
+    private void process(ShardManifest.Unit unit) throws IOException {
+        ImagePlus imp = IJ.openImage(unit.imagePath);
+        if(imp==null) throw new IOException("Could not open "+unit.imagePath);
+
+        int cellChannel = manifest.getInt("cellChannel");
+        int nucleusChannel = manifest.getInt("nucleusChannel");
+        int imageWidth = imp.getWidth(), imageHeight = imp.getHeight();
+        String title = imp.getTitle();
+        boolean tiled = unit.isTile();
+
+        String cellThreshold = manifest.getSetting("cell.threshold");
+        String nucleusThreshold = manifest.getSetting("nuclei.threshold");
+        boolean darkBackground = manifest.getBoolean("darkBackground");
+        boolean splitCells = manifest.getBoolean("cell.split"), splitNuclei = manifest.getBoolean("nuclei.split");
+
+        NucleusCounter nc;
+        Rectangle region, core;
+        boolean resumed = false;
+        if(!tiled){
+            region = core = new Rectangle(0, 0, imageWidth, imageHeight);
+            // a whole image left half exported by a worker that died carries on from its checkpoint, as long as
+            // that was segmented with the settings of this manifest
+            String settings = getSegmentationSettings(unit);
+            Checkpoint checkpoint = new Checkpoint(getResultsDir(manifest, title));
+            nc = null;
+            if(hasExports() && checkpoint.hasSegmentation() && !checkpoint.isComplete()){
+                if(settings.equals(checkpoint.getSettings())) nc = NucleusCounter.fromCheckpoint(getResultsDir(manifest, title));
+                else IJ.log("WARN: "+workerId+": the checkpoint of "+unit.getName()+" was made with other settings, starting again");
+            }
+            resumed = nc!=null;
+            if(resumed) IJ.log(workerId+": resuming "+unit.getName()+" from its checkpoint");
+            else{
+                nc = new NucleusCounter(imp, cellChannel, nucleusChannel, cellThreshold, nucleusThreshold, darkBackground);
+                nc.splitTouchingObjects(splitCells, splitNuclei);
+            }
+            nc.setCheckpointSettings(settings);
+            setSavePaths(nc, title);
+        }
+        else{
+            int halo = manifest.getInt("tileHalo");
+            core = unit.tile;
+            region = new Rectangle(core.x-halo, core.y-halo, core.width+2*halo, core.height+2*halo)
+                    .intersection(new Rectangle(0, 0, imageWidth, imageHeight));
+            // only the region is thresholded, with the levels of the whole image from the manifest, so every tile
+            // agrees with a single run; the distance map of the watershed reaches past the region, so a split
+            // mask is made over the region grown by another halo and cut back to the region afterwards
+            Rectangle maskRegion = splitCells || splitNuclei ?
+                    new Rectangle(region.x-halo, region.y-halo, region.width+2*halo, region.height+2*halo)
+                            .intersection(new Rectangle(0, 0, imageWidth, imageHeight)) : region;
+            Rectangle crop = new Rectangle(region.x-maskRegion.x, region.y-maskRegion.y, region.width, region.height);
+            ImageStack ims = imp.getImageStack();
+            ParallelThresholder thresholder = new ParallelThresholder();
+            WatershedSplitter splitter = new WatershedSplitter();
+            BitMask maskCell = toTileMask(thresholder, ims.getProcessor(cellChannel), unit.cellLevel, cellThreshold, maskRegion, darkBackground);
+            BitMask maskNuclei = toTileMask(thresholder, ims.getProcessor(nucleusChannel), unit.nucleusLevel, nucleusThreshold, maskRegion, darkBackground);
+            if(splitCells) maskCell = splitter.split(maskCell);
+            if(splitNuclei) maskNuclei = splitter.split(maskNuclei);
+            if(maskRegion!=region){
+                maskCell = maskCell.crop(crop);
+                maskNuclei = maskNuclei.crop(crop);
+            }
+            nc = new NucleusCounter(maskCell, maskNuclei, imp.getCalibration());
+        }
+        imp = null;
+
+        nc.setShowResults(false);
+        if(!resumed) segment(nc, tiled, region, core, imageWidth, imageHeight, unit);
+
+        // keys are taken before analysis because exporting crops moves the nucleus Rois
+        Roi[] cellRois = nc.getCellRoiArray();
+        Roi[] nucleusRois = nc.getNucleusRoiArray();
+        Point[] cellKeys = new Point[cellRois.length];
+        for(int i=0; i<cellRois.length; i++) cellKeys[i] = getRasterKey(cellRois[i], region);
+        Point[] nucleusKeys = new Point[nucleusRois.length];
+        for(int i=0; i<nucleusRois.length; i++) nucleusKeys[i] = getRasterKey(nucleusRois[i], region);
+        int[] cellCentreY = getCentreY(cellRois, region);
+        int[] nucleusCentreY = getCentreY(nucleusRois, region);
+
+        if(!resumed) nc.matchNucleiToCells_v2();
+        nc.analyseAllRois_v2();
+
+        writeCells(unit, nc, title, imageHeight, cellKeys, cellCentreY);
+        writeNuclei(unit, core, nucleusKeys, nucleusCentreY);
+        nc.getStatistics().save(manifest.getPartialFile(unit, "stats.tsv"));
+        if(tiled && manifest.getBoolean("saveResults")) writeMembers(unit, nc, cellRois, cellKeys, nucleusKeys);
+    }
+
+    private static BitMask toTileMask(ParallelThresholder thresholder, ImageProcessor ip, double[] level, String method,
+                                      Rectangle r, boolean darkBackground){
+        // manifests written before the levels were stored have to take them from the whole image here
+        if(level==null) level = thresholder.getLevel(ip, method, darkBackground);
+        ip.setRoi(r);
+        ImageProcessor tile = ip.crop();
+        ip.resetRoi();
+        return thresholder.toMask(tile, level);
+    }
+
+    private void segment(NucleusCounter nc, boolean tiled, Rectangle region, Rectangle core, int imageWidth, int imageHeight,
+                         ShardManifest.Unit unit) throws IOException {
+        nc.setMeasurements(manifest.getBoolean("getArea"), manifest.getBoolean("getCentroid"),
+                manifest.getBoolean("getPerimeter"), manifest.getBoolean("getEllipse"), manifest.getBoolean("getCirc"),
+                manifest.getBoolean("getAR"), manifest.getBoolean("getRound"), manifest.getBoolean("getSolidity"));
+
+        // in a tile, edge exclusion has to be judged against the whole image, not the tile border
+        boolean excludeCellEdges = manifest.getBoolean("cell.excludeEdge");
+        nc.getCellRois(manifest.getDouble("cell.minSize"), manifest.getDouble("cell.maxSize"),
+                manifest.getDouble("cell.minCirc"), manifest.getDouble("cell.maxCirc"),
+                excludeCellEdges && !tiled, manifest.getBoolean("cell.includeHoles"));
+        if(tiled){
+            Roi[] cellRois = nc.getCellRoiArray();
+            boolean[] keep = new boolean[cellRois.length];
+            for(int i=0; i<cellRois.length; i++){
+                Point key = getRasterKey(cellRois[i], region);
+                keep[i] = core.contains(key) && !(excludeCellEdges && touchesImageEdge(cellRois[i], region, imageWidth, imageHeight));
+                if(keep[i] && touchesRegionEdge(cellRois[i], region, imageWidth, imageHeight)){
+                    IJ.log("WARN: cell "+cellRois[i].getName()+" in "+unit.getName()+" is clipped by the tile halo, increase tileHalo");
+                }
+            }
+            nc.keepCells(keep);
+        }
+
+        boolean excludeNucleusEdges = manifest.getBoolean("nuclei.excludeEdge");
+        nc.getNucleusRois(manifest.getDouble("nuclei.minSize"), manifest.getDouble("nuclei.maxSize"),
+                manifest.getDouble("nuclei.minCirc"), manifest.getDouble("nuclei.maxCirc"),
+                excludeNucleusEdges && !tiled, manifest.getBoolean("nuclei.includeHoles"));
+        if(tiled){
+            Roi[] nucleusRois = nc.getNucleusRoiArray();
+            boolean[] keep = new boolean[nucleusRois.length];
+            for(int i=0; i<nucleusRois.length; i++){
+                keep[i] = !(excludeNucleusEdges && touchesImageEdge(nucleusRois[i], region, imageWidth, imageHeight));
+                if(keep[i] && core.contains(getRasterKey(nucleusRois[i], region)) &&
+                        touchesRegionEdge(nucleusRois[i], region, imageWidth, imageHeight)){
+                    IJ.log("WARN: nucleus "+nucleusRois[i].getName()+" in "+unit.getName()+" is clipped by the tile halo, increase tileHalo");
+                }
+            }
+            if(excludeNucleusEdges) nc.keepNuclei(keep);
+        }
+    }
+
+    // everything in the manifest that changes which objects are found or what is measured for them
+    private String getSegmentationSettings(ShardManifest.Unit unit){
+        StringBuilder sb = new StringBuilder(unit.imagePath);
+        for(String key:new String[]{"cellChannel", "nucleusChannel", "darkBackground", "getArea", "getCentroid",
+                "getPerimeter", "getEllipse", "getCirc", "getAR", "getRound", "getSolidity"}){
+            sb.append('\t').append(key).append('=').append(manifest.getSetting(key));
+        }
+        for(String c:new String[]{"cell", "nuclei"}){
+            for(String key:new String[]{"minSize", "maxSize", "minCirc", "maxCirc", "excludeEdge", "includeHoles", "threshold", "split"}){
+                sb.append('\t').append(c).append('.').append(key).append('=').append(manifest.getSetting(c+"."+key));
+            }
+        }
+        return sb.toString();
+    }
+
+    private boolean hasExports(){
+        return manifest.getBoolean("saveResults") || manifest.getBoolean("saveImages") || manifest.getBoolean("saveRoiSets");
+    }
+
+    private void setSavePaths(NucleusCounter nc, String title){
+        boolean saveResults = manifest.getBoolean("saveResults");
+        boolean saveImages = manifest.getBoolean("saveImages");
+        boolean saveRoiSets = manifest.getBoolean("saveRoiSets");
+        if(!hasExports()) return;
+
+        String saveDir = NucleusCounter.makeDirectory(getResultsDir(manifest, title));
+        String roisDir = saveRoiSets ? NucleusCounter.makeDirectory(saveDir+File.separator+"local rois") : null;
+        String resultsDir = saveResults ? NucleusCounter.makeDirectory(saveDir+File.separator+"tables") : null;
+        String imagesDir = saveImages ? NucleusCounter.makeDirectory(saveDir+File.separator+"crops") : null;
+        nc.setSavePaths(saveDir, roisDir, resultsDir, imagesDir);
+    }
+
+    public static String getResultsDir(ShardManifest manifest, String title){
+        return manifest.getSetting("outputDir")+File.separator+title+" - results";
+    }
+
+    private void writeCells(ShardManifest.Unit unit, NucleusCounter nc, String title, int imageHeight,
+                            Point[] cellKeys, int[] cellCentreY) throws IOException {
+        ResultsTable summary = nc.getSummaryTable();
+        ArrayList<String> headings = getSummaryHeadings(nc.getColumns());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("#title\t").append(title).append('\n');
+        sb.append("#imageHeight\t").append(imageHeight).append('\n');
+        sb.append("keyY\tkeyX\tcentreY");
+        for(String h:headings) sb.append('\t').append(h);
+        sb.append('\n');
+
+        for(int i=0; i<cellKeys.length; i++){
+            sb.append(cellKeys[i].y).append('\t').append(cellKeys[i].x).append('\t').append(cellCentreY[i]);
+            for(String h:headings) sb.append('\t').append(summary.getValue(h, i));
+            sb.append('\n');
+        }
+        ShardManifest.writeAtomically(manifest.getPartialFile(unit, "cells.tsv"), sb.toString());
+    }
+
+    private void writeNuclei(ShardManifest.Unit unit, Rectangle core, Point[] nucleusKeys, int[] nucleusCentreY) throws IOException {
+        StringBuilder sb = new StringBuilder("keyY\tkeyX\tcentreY\n");
+        for(int i=0; i<nucleusKeys.length; i++){
+            if(!core.contains(nucleusKeys[i])) continue;
+            sb.append(nucleusKeys[i].y).append('\t').append(nucleusKeys[i].x).append('\t').append(nucleusCentreY[i]).append('\n');
+        }
+        ShardManifest.writeAtomically(manifest.getPartialFile(unit, "nuclei.tsv"), sb.toString());
+    }
+
+    // per-nucleus rows for each cell, with X and Y already made relative to the cell crop as in analyseCrop_v2
+    private void writeMembers(ShardManifest.Unit unit, NucleusCounter nc, Roi[] cellRois,
+                              Point[] cellKeys, Point[] nucleusKeys) throws IOException {
+        ArrayList<String> columns = nc.getColumns();
+        LinkedHashMap<String, double[]> measurements = nc.getNucleusMeasurements();
+        LinkedHashMap<Integer, int[]> cellNucleusMap = nc.getCellNucleusMap();
+        Calibration calibration = nc.getCalibration();
+
+        StringBuilder sb = new StringBuilder("cellKeyY\tcellKeyX\tnucleusKeyY\tnucleusKeyX");
+        for(String h:columns) sb.append('\t').append(h);
+        sb.append('\n');
+
+        for(int i=0; i<cellRois.length; i++){
+            Rectangle rect = cellRois[i].getBounds();
+            for(int j:cellNucleusMap.get(i)){
+                sb.append(cellKeys[i].y).append('\t').append(cellKeys[i].x).append('\t')
+                        .append(nucleusKeys[j].y).append('\t').append(nucleusKeys[j].x);
+                for(String h:columns){
+                    double value = measurements.get(h)[j];
+                    if(h.equals("X")) value -= rect.x*calibration.pixelWidth;
+                    else if(h.equals("Y")) value -= rect.y*calibration.pixelWidth;
+                    sb.append('\t').append(value);
+                }
+                sb.append('\n');
+            }
+        }
+        ShardManifest.writeAtomically(manifest.getPartialFile(unit, "members.tsv"), sb.toString());
+    }
+
+    public static ArrayList<String> getSummaryHeadings(ArrayList<String> columns){
+        ArrayList<String> headings = new ArrayList<>();
+        headings.add("Cell area");
+        headings.add("N nuclei in cell");
+        for(String h:columns){
+            if(h.equals("X") || h.equals("Y")) continue;
+            headings.add(h+" mean");
+            headings.add(h+" std");
+        }
+        return headings;
+    }
+
+    // first pixel of the particle in raster order, which is where ParticleAnalyzer starts tracing it,
+    // so sorting by this key reproduces the order of a single whole-image run
+    static Point getRasterKey(Roi roi, Rectangle region){
+        Rectangle b = roi.getBounds();
+        int x0 = 0;
+        ImageProcessor mask = roi.getMask();
+        if(mask!=null){
+            while(x0<b.width-1 && mask.get(x0, 0)==0) x0++;
+        }
+        return new Point(region.x+b.x+x0, region.y+b.y);
+    }
+
+    private static int[] getCentreY(Roi[] rois, Rectangle region){
+        int[] centreY = new int[rois.length];
+        for(int i=0; i<rois.length; i++){
+            Rectangle b = rois[i].getBounds();
+            centreY[i] = region.y + b.y + b.height/2;
+        }
+        return centreY;
+    }
+
+    static boolean touchesImageEdge(Roi roi, Rectangle region, int imageWidth, int imageHeight){
+        Rectangle b = roi.getBounds();
+        int x = region.x+b.x, y = region.y+b.y;
+        return x==0 || y==0 || x+b.width==imageWidth || y+b.height==imageHeight;
+    }
+
+    // touching a side of the region that is not also an image edge means the particle was cut by the halo
+    static boolean touchesRegionEdge(Roi roi, Rectangle region, int imageWidth, int imageHeight){
+        Rectangle b = roi.getBounds();
+        return (b.x==0 && region.x>0) || (b.y==0 && region.y>0) ||
+                (b.x+b.width==region.width && region.x+region.width<imageWidth) ||
+                (b.y+b.height==region.height && region.y+region.height<imageHeight);
+    }
+}
@@ -0,0 +1,105 @@
+import java.awt.*;
+
+// Uniform grid over object bounding boxes. Each object is listed in every bin its bounds overlap,
+// so a point or rectangle query only looks at the objects in the bins it touches.
+public class SpatialIndex {
+
+    private final Rectangle[] bounds;
+    private final int binSize, originX, originY, nBinsX, nBinsY;
+    private final int[] binStart, binObjects;
+
+    public SpatialIndex(Rectangle[] bounds){
+        this(bounds, 0);
+    }
+
+    // binSize<=0 picks the mean object size, which keeps each object in a handful of bins
+    public SpatialIndex(Rectangle[] bounds, int binSize){
+        this.bounds = bounds;
+
+        Rectangle extent = null;
+        long sizeSum = 0;
+        for(Rectangle b:bounds){
+            if(extent==null) extent = new Rectangle(b);
+            else extent.add(b);
+            sizeSum += Math.max(b.width, b.height);
+        }
+        if(extent==null) extent = new Rectangle(0, 0, 1, 1);
+        if(binSize<=0) binSize = bounds.length==0 ? 1 : (int) Math.max(1, sizeSum/bounds.length);
+
+        this.binSize = binSize;
+        this.originX = extent.x;
+        this.originY = extent.y;
+        this.nBinsX = extent.width/binSize+1;
+        this.nBinsY = extent.height/binSize+1;
+
+        // two passes, counting then filling, so the bins are one flat array
+        binStart = new int[nBinsX*nBinsY+1];
+        for(Rectangle b:bounds){
+            int x0 = binX(b.x), x1 = binX(b.x+b.width-1), y0 = binY(b.y), y1 = binY(b.y+b.height-1);
+            for(int by=y0; by<=y1; by++) for(int bx=x0; bx<=x1; bx++) binStart[by*nBinsX+bx+1]++;
+        }
+        for(int i=1; i<binStart.length; i++) binStart[i] += binStart[i-1];
+
+        binObjects = new int[binStart[binStart.length-1]];
+        int[] fill = new int[nBinsX*nBinsY];
+        for(int i=0; i<bounds.length; i++){
+            Rectangle b = bounds[i];
+            int x0 = binX(b.x), x1 = binX(b.x+b.width-1), y0 = binY(b.y), y1 = binY(b.y+b.height-1);
+            for(int by=y0; by<=y1; by++){
+                for(int bx=x0; bx<=x1; bx++){
+                    int bin = by*nBinsX+bx;
+                    binObjects[binStart[bin]+fill[bin]++] = i;
+                }
+            }
+        }
+    }
+
+    private int binX(int x){
+        return Math.min(nBinsX-1, Math.max(0, (x-originX)/binSize));
+    }
+
+    private int binY(int y){
+        return Math.min(nBinsY-1, Math.max(0, (y-originY)/binSize));
+    }
+
+    public interface Visitor {
+        // return false to stop the query early
+        boolean visit(int index);
+    }
+
+    // visits every object whose bounds contain (x, y)
+    public void query(int x, int y, Visitor visitor){
+        if(x<originX || y<originY) return;
+        int bx = (x-originX)/binSize, by = (y-originY)/binSize;
+        if(bx>=nBinsX || by>=nBinsY) return;
+
+        int bin = by*nBinsX+bx;
+        for(int k=binStart[bin]; k<binStart[bin+1]; k++){
+            int i = binObjects[k];
+            if(bounds[i].contains(x, y) && !visitor.visit(i)) return;
+        }
+    }
+
+    // visits every object whose bounds intersect rect, each exactly once
+    public void query(Rectangle rect, Visitor visitor){
+        int x0 = binX(rect.x), x1 = binX(rect.x+rect.width-1), y0 = binY(rect.y), y1 = binY(rect.y+rect.height-1);
+        for(int by=y0; by<=y1; by++){
+            for(int bx=x0; bx<=x1; bx++){
+                int bin = by*nBinsX+bx;
+                for(int k=binStart[bin]; k<binStart[bin+1]; k++){
+                    int i = binObjects[k];
+                    Rectangle b = bounds[i];
+                    if(!b.intersects(rect)) continue;
+                    // only report an object from the first bin it shares with rect
+                    int firstX = Math.max(x0, binX(b.x)), firstY = Math.max(y0, binY(b.y));
+                    if(bx!=firstX || by!=firstY) continue;
+                    if(!visitor.visit(i)) return;
+                }
+            }
+        }
+    }
+
+    public int size(){
+        return bounds.length;
+    }
+}
@@ -0,0 +1,95 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+// Seeded generator of binary two-channel test images: cells in frame 1, nuclei in frame 2. Cells sit on a
+// jittered grid so they never touch, which makes the number of cells exact; the number of nuclei in each
+// cell is Poisson distributed. The same seed and settings always give the same image.
+public class SyntheticSlide {
+
+    private final int width, height;
+    private final double cellsPerMegapixel, meanNucleiPerCell;
+    private final long seed;
+    private int nCells, nNuclei;
+
+    public SyntheticSlide(int width, int height, double cellsPerMegapixel, double meanNucleiPerCell, long seed){
+        this.width = width;
+        this.height = height;
+        this.cellsPerMegapixel = cellsPerMegapixel;
+        this.meanNucleiPerCell = meanNucleiPerCell;
+        this.seed = seed;
+    }
+
+    // image i of a series uses its own stream, so a series can be regenerated one image at a time
+    public ImagePlus generate(int i){
+        Random random = new Random(seed*1000003L+i);
+        ByteProcessor ipCell = new ByteProcessor(width, height);
+        ByteProcessor ipNuclei = new ByteProcessor(width, height);
+        ipCell.setValue(255);
+        ipNuclei.setValue(255);
+        nCells = 0;
+        nNuclei = 0;
+
+        int spacing = Math.max(8, (int) Math.round(Math.sqrt(1e6/cellsPerMegapixel)));
+        for(int gy=0; gy+spacing<=height; gy+=spacing){
+            for(int gx=0; gx+spacing<=width; gx+=spacing){
+                // ellipses at most 80% of the grid spacing, with a gap of at least one pixel to the neighbours
+                int cw = (int) (spacing*(0.55+0.25*random.nextDouble()));
+                int ch = (int) (spacing*(0.55+0.25*random.nextDouble()));
+                int cx = gx+1+random.nextInt(spacing-cw-1);
+                int cy = gy+1+random.nextInt(spacing-ch-1);
+                ipCell.fillOval(cx, cy, cw, ch);
+                nCells++;
+                addNuclei(ipNuclei, random, cx, cy, cw, ch);
+            }
+        }
+
+        ImageStack ims = new ImageStack(width, height);
+        ims.addSlice("cells", ipCell);
+        ims.addSlice("nuclei", ipNuclei);
+        return new ImagePlus(String.format("synthetic-%d-%03d", seed, i), ims);
+    }
+
+    // nuclei are dropped into cells on a coarse grid of their own, so they never merge with each other
+    private void addNuclei(ByteProcessor ipNuclei, Random random, int cx, int cy, int cw, int ch){
+        int n = getPoisson(random, meanNucleiPerCell);
+        int d = Math.max(3, Math.min(cw, ch)/5);
+        int slotsX = (cw*13/20)/(d+2), slotsY = (ch*13/20)/(d+2);
+        if(slotsX<1 || slotsY<1) return;
+        n = Math.min(n, slotsX*slotsY);
+
+        // partial Fisher-Yates shuffle picks n distinct slots
+        int[] slots = new int[slotsX*slotsY];
+        for(int s=0; s<slots.length; s++) slots[s] = s;
+        int x0 = cx+(cw-slotsX*(d+2))/2, y0 = cy+(ch-slotsY*(d+2))/2;
+        for(int k=0; k<n; k++){
+            int j = k+random.nextInt(slots.length-k);
+            int s = slots[j];
+            slots[j] = slots[k];
+            slots[k] = s;
+            ipNuclei.fillOval(x0+(s%slotsX)*(d+2)+1, y0+(s/slotsX)*(d+2)+1, d, d);
+        }
+        nNuclei += n;
+    }
+
+    private static int getPoisson(Random random, double mean){
+        double limit = Math.exp(-mean), p = random.nextDouble();
+        int k = 0;
+        while(p>limit){
+            p *= random.nextDouble();
+            k++;
+        }
+        return k;
+    }
+
+    // counts for the last generated image
+    public int getNCells(){
+        return nCells;
+    }
+
+    public int getNNuclei(){
+        return nNuclei;
+    }
+}
@@ -1,6 +1,7 @@
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.gui.Overlay;
 import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.measure.Measurements;
@@ -9,6 +10,8 @@ import ij.plugin.filter.ParticleAnalyzer;
 import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
 
+import java.awt.*;
+
 public class TableScraper implements Measurements{
 
     RoiManager rm;
@@ -17,6 +20,9 @@ public class TableScraper implements Measurements{
     private Calibration calibration = null;
     double minSize, maxSize, minCirc, maxCirc;
     private int measurements = ALL_STATS, options;
+    // ParticleAnalyzer hands Rois over through a static RoiManager and the shared results table is reset, so
+    // only one analysis can run at a time, e.g. a live preview still labelling when the real run starts
+    private static final Object ANALYSING = new Object();
 
     public TableScraper(){
         ImagePlus img1 = IJ.openImage("C:/Users/sianc/Code/NucleusCounter/src/main/resources/Nuclei.tif");
@@ -58,19 +64,23 @@ public class TableScraper implements Measurements{
     }
 
     public Object[] getRois(){
-        return getRois_v2(ip, options, ALL_STATS, minSize, maxSize, minCirc, maxCirc);
+        synchronized(ANALYSING){
+            return getRois_v2(ip, options, ALL_STATS, minSize, maxSize, minCirc, maxCirc);
+        }
     }
 
     private Object[] getRois_v2(ImageProcessor ip,
                              int options, int measurements,
                              double minSize, double maxSize,
                              double minCirc, double maxCirc){
+        if(GraphicsEnvironment.isHeadless()) return getRoisHeadless(ip, options, measurements, minSize, maxSize, minCirc, maxCirc);
+
         RoiManager thisManager = RoiManager.getInstance();
         if(thisManager!=null){
             rm = thisManager;
             rm.close();
         }
-        rm = new RoiManager();
+        rm = new RoiManager(true);
 
         ResultsTable rt = ResultsTable.getResultsTable();
         if(rt!=null){
@@ -96,6 +106,46 @@ public class TableScraper implements Measurements{
 
     }
 
+    // RoiManager is a Frame, so without a display the particles are collected from an overlay instead
+    // and given the names RoiManager would have given them
+    private Object[] getRoisHeadless(ImageProcessor ip,
+                                     int options, int measurements,
+                                     double minSize, double maxSize,
+                                     double minCirc, double maxCirc){
+        options = (options & ~(ParticleAnalyzer.ADD_TO_MANAGER | ParticleAnalyzer.SHOW_NONE)) | ParticleAnalyzer.SHOW_OVERLAY_OUTLINES;
+        ResultsTable rt = new ResultsTable();
+        ParticleAnalyzer pa = new ParticleAnalyzer(options, measurements, rt, minSize, maxSize, minCirc, maxCirc);
+
+        if(!ip.isInvertedLut()) ip.invertLut();
+
+        ImagePlus analysisImp = new ImagePlus("", ip);
+        analysisImp.setCalibration(calibration);
+        pa.analyze(analysisImp);
+
+        Overlay overlay = analysisImp.getOverlay();
+        Roi[] rois = overlay==null ? new Roi[0] : overlay.toArray();
+        for(int i=0; i<rois.length; i++){
+            Rectangle r = rois[i].getBounds();
+            rois[i].setStrokeColor(null);
+            rois[i].setName(getRoiLabel(i+1, r.y+r.height/2, ip.getHeight()));
+        }
+
+        return new Object[]{rois, rt};
+    }
+
+    // same format as RoiManager.getLabel for a particle added by ParticleAnalyzer: "<particle number>-<centre y>"
+    public static String getRoiLabel(int particleNumber, int centreY, int imageHeight){
+        int digits = 4;
+        String xs = ""+centreY;
+        if(xs.length()>digits) digits = xs.length();
+        String ys = ""+particleNumber;
+        if(ys.length()>digits) digits = ys.length();
+        if(digits==4 && imageHeight>=10000) digits = 5;
+        xs = "000000"+centreY;
+        ys = "000000"+particleNumber;
+        return ys.substring(ys.length()-digits)+"-"+xs.substring(xs.length()-digits);
+    }
+
     public static void main (String[] args){
         new ImageJ();
 
@@ -0,0 +1,151 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.IOException;
+
+// Runs the cell/nucleus pipeline on every frame of a time-lapse hyperstack and links cells between
+// consecutive frames, so nuclei per cell can be followed along each track.
+public class TimeLapseCounter {
+
+    private final ImagePlus imp;
+    private final int cellChannel, nucleusChannel;
+    private final CellTracker tracker;
+    private boolean[] measurements = new boolean[8];
+    private double[] cellOptions, nucleusOptions;
+    private boolean[] cellFlags, nucleusFlags;
+    private String saveDir = null;
+    private boolean saveRois = false, saveResults = false, saveCrops = false;
+    private ResultsTable summaryTable;
+    private String cellThreshold = ParallelThresholder.NONE, nucleusThreshold = ParallelThresholder.NONE;
+    private boolean darkBackground = true;
+    private boolean splitCells = false, splitNuclei = false;
+    private long nucleusStripMemory = 0;
+
+    public TimeLapseCounter(ImagePlus imp, int cellChannel, int nucleusChannel, double maxDistance, double minOverlap){
+        this.imp = imp;
+        this.cellChannel = cellChannel;
+        this.nucleusChannel = nucleusChannel;
+        this.tracker = new CellTracker(maxDistance, minOverlap);
+    }
+
+    // each frame gets its own "frame N" folder, laid out like a single-image run
+    public void setSavePaths(String saveDir, boolean saveRois, boolean saveResults, boolean saveCrops){
+        this.saveDir = saveDir;
+        this.saveRois = saveRois;
+        this.saveResults = saveResults;
+        this.saveCrops = saveCrops;
+    }
+
+    public void setThresholds(String cellThreshold, String nucleusThreshold, boolean darkBackground){
+        this.cellThreshold = cellThreshold;
+        this.nucleusThreshold = nucleusThreshold;
+        this.darkBackground = darkBackground;
+    }
+
+    public void setSplitTouching(boolean splitCells, boolean splitNuclei){
+        this.splitCells = splitCells;
+        this.splitNuclei = splitNuclei;
+    }
+
+    // applied to every frame, see NucleusCounter.setNucleusStripMemory
+    public void setNucleusStripMemory(long bytes){
+        this.nucleusStripMemory = bytes;
+    }
+
+    public void setMeasurements(boolean getArea, boolean getCentroid, boolean getPerimeter, boolean getEllipse,
+                                boolean getCirc, boolean getAR, boolean getRound, boolean getSolidity){
+        measurements = new boolean[]{getArea, getCentroid, getPerimeter, getEllipse, getCirc, getAR, getRound, getSolidity};
+    }
+
+    public void setOptions(boolean isCell, double minSize, double maxSize, double minCirc, double maxCirc,
+                           boolean excludeEdges, boolean includeHoles){
+        double[] options = new double[]{minSize, maxSize, minCirc, maxCirc};
+        boolean[] flags = new boolean[]{excludeEdges, includeHoles};
+        if(isCell){
+            cellOptions = options;
+            cellFlags = flags;
+        }
+        else{
+            nucleusOptions = options;
+            nucleusFlags = flags;
+        }
+    }
+
+    public void analyseAllFrames() throws IOException {
+        int nFrames = imp.getNFrames();
+        if(imp.getNSlices()>1) IJ.log("WARN: only the first z-position of each frame is analysed");
+
+        ImageStack ims = imp.getImageStack();
+        ParallelThresholder thresholder = new ParallelThresholder();
+        summaryTable = new ResultsTable();
+        DatasetStatistics statistics = new DatasetStatistics();
+
+        for(int t=1; t<=nFrames; t++){
+            IJ.showStatus("Working on frame "+t+" of "+nFrames);
+            BitMask maskCell = thresholder.toMask(ims.getProcessor(imp.getStackIndex(cellChannel, 1, t)), cellThreshold, darkBackground);
+            BitMask maskNuclei = thresholder.toMask(ims.getProcessor(imp.getStackIndex(nucleusChannel, 1, t)), nucleusThreshold, darkBackground);
+            NucleusCounter nc = new NucleusCounter(maskCell, maskNuclei, imp.getCalibration());
+            nc.setShowResults(false);
+            nc.setNucleusStripMemory(nucleusStripMemory);
+            nc.splitTouchingObjects(splitCells, splitNuclei);
+            if(saveDir!=null) setFrameSavePaths(nc, t);
+            nc.setMeasurements(measurements[0], measurements[1], measurements[2], measurements[3],
+                    measurements[4], measurements[5], measurements[6], measurements[7]);
+
+            double[] c = cellOptions, n = nucleusOptions;
+            nc.getCellRois(c[0], c[1], c[2], c[3], cellFlags[0], cellFlags[1]);
+            nc.getNucleusRois(n[0], n[1], n[2], n[3], nucleusFlags[0], nucleusFlags[1]);
+            nc.matchNucleiToCells_v2();
+
+            // link before analysing, exporting crops moves the nucleus Rois but never the cells
+            CellTracker.Link[] links = tracker.link(nc.getCellRoiArray(), nc.getCellMask());
+            nc.analyseAllRois_v2();
+
+            addFrameRows(t, nc.getSummaryTable(), links);
+            statistics.merge(nc.getStatistics());
+        }
+
+        summaryTable.show("Summary Results");
+        if(saveDir!=null) summaryTable.save(saveDir+File.separator+"Summary Results.csv");
+        // every frame gets its own statistics in its folder, these cover the whole movie
+        statistics.getReport().show("Dataset statistics");
+        if(saveDir!=null) statistics.saveReport(saveDir);
+    }
+
+    private void setFrameSavePaths(NucleusCounter nc, int t){
+        String frameDir = NucleusCounter.makeDirectory(saveDir+File.separator+"frame "+t);
+        String roiDir = saveRois ? NucleusCounter.makeDirectory(frameDir+File.separator+"local rois") : null;
+        String resultsDir = saveResults ? NucleusCounter.makeDirectory(frameDir+File.separator+"tables") : null;
+        String cropsDir = saveCrops ? NucleusCounter.makeDirectory(frameDir+File.separator+"crops") : null;
+        nc.setSavePaths(frameDir, roiDir, resultsDir, cropsDir);
+    }
+
+    // the per-frame summary columns, with the frame and track columns added after the cell name
+    private void addFrameRows(int t, ResultsTable frameTable, CellTracker.Link[] links){
+        String[] headings = frameTable.getHeadings();
+        for(int i=0; i<frameTable.size(); i++){
+            summaryTable.incrementCounter();
+            summaryTable.addValue("Frame", t);
+            for(String h:headings){
+                if(h.equals("Cell name") || h.equals(" ")){
+                    summaryTable.addValue(h, frameTable.getStringValue(h, i));
+                }
+                else{
+                    summaryTable.addValue(h, frameTable.getValue(h, i));
+                }
+                if(h.equals("Cell name")){
+                    summaryTable.addValue("Track ID", links[i].trackId);
+                    summaryTable.addValue("Parent track ID", links[i].parentTrackId);
+                    summaryTable.addValue("Event", links[i].event);
+                }
+            }
+        }
+    }
+
+    public ResultsTable getSummaryTable(){
+        return summaryTable;
+    }
+}
@@ -0,0 +1,316 @@
+import ij.Prefs;
+import ij.util.ThreadUtil;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Splits touching objects in a binary mask along watershed lines of the Euclidean distance map, like
+// Process>Binary>Watershed. Every connected component is independent, so components are handed out to
+// threads largest first and each one is worked on in a small padded crop of its bounding box.
+public class WatershedSplitter {
+
+    // same as ImageJ's binary watershed: maxima less than half a pixel above the saddle are merged
+    public static final double DEFAULT_TOLERANCE = 0.5;
+
+    private static final int[] DX = {-1, 0, 1, -1, 1, -1, 0, 1};
+    private static final int[] DY = {-1, -1, -1, 0, 0, 1, 1, 1};
+
+    private final double tolerance;
+    private final int nThreads;
+
+    public WatershedSplitter(){
+        this(DEFAULT_TOLERANCE, Prefs.getThreads());
+    }
+
+    public WatershedSplitter(double tolerance, int nThreads){
+        this.tolerance = tolerance;
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    // returns a copy of the mask with the watershed lines cleared
+    public BitMask split(BitMask mask){
+        BitMask.Labels labels = mask.label();
+        int nLabels = labels.nLabels;
+        Rectangle[] bounds = labels.getBounds();
+
+        // runs grouped by label, so each component can be drawn into its crop without scanning the others
+        int[] labelFirstRun = new int[nLabels+2];
+        for(int i=0; i<labels.nRuns; i++) labelFirstRun[labels.runLabel[i]+1]++;
+        for(int l=1; l<=nLabels+1; l++) labelFirstRun[l] += labelFirstRun[l-1];
+        int[] runsByLabel = new int[labels.nRuns];
+        int[] next = Arrays.copyOf(labelFirstRun, nLabels+1);
+        for(int i=0; i<labels.nRuns; i++) runsByLabel[next[labels.runLabel[i]]++] = i;
+
+        // biggest components first so no thread is left with a large one at the end
+        int[] areas = labels.getAreas();
+        long[] order = new long[nLabels];
+        for(int l=1; l<=nLabels; l++) order[l-1] = ((long) (Integer.MAX_VALUE-areas[l]) << 32) | l;
+        Arrays.sort(order);
+
+        AtomicInteger nextComponent = new AtomicInteger();
+        long[][] lines = new long[nThreads][];
+        int[] nLines = new int[nThreads];
+        Thread[] threads = new Thread[nThreads];
+        for(int t=0; t<nThreads; t++){
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                long[] found = new long[64];
+                int n = 0;
+                int c;
+                while((c = nextComponent.getAndIncrement())<nLabels){
+                    int l = (int) order[c];
+                    int[] local = splitComponent(labels, runsByLabel, labelFirstRun[l], labelFirstRun[l+1], bounds[l]);
+                    if(local==null) continue;
+                    if(n+local.length>found.length) found = Arrays.copyOf(found, Math.max(found.length*2, n+local.length));
+                    for(int p:local) found[n++] = p & 0xffffffffL | (long) c << 32;
+                }
+                lines[thread] = found;
+                nLines[thread] = n;
+            });
+        }
+        ThreadUtil.startAndJoin(threads);
+
+        // neighbouring components can share words, so the lines are only cleared once every thread is done
+        BitMask out = mask.duplicate();
+        for(int t=0; t<nThreads; t++){
+            for(int i=0; i<nLines[t]; i++){
+                long line = lines[t][i];
+                Rectangle b = bounds[(int) order[(int) (line >>> 32)]];
+                int p = (int) line, cropWidth = b.width+2;
+                out.clear(b.x-1+p%cropWidth, b.y-1+p/cropWidth);
+            }
+        }
+        return out;
+    }
+
+    // watershed of one component in its bounding box padded by a background pixel; returns the crop
+    // indices to clear, or null if the component has a single maximum
+    private int[] splitComponent(BitMask.Labels labels, int[] runsByLabel, int firstRun, int lastRun, Rectangle b){
+        int w = b.width+2, h = b.height+2;
+        boolean[] inside = new boolean[w*h];
+        for(int r=firstRun; r<lastRun; r++){
+            int run = runsByLabel[r];
+            int offset = (labels.runRow[run]-b.y+1)*w-b.x+1;
+            Arrays.fill(inside, offset+labels.runStart[run], offset+labels.runEnd[run], true);
+        }
+
+        int[] dist = getSquaredEDT(inside, w, h);
+        int[] owner = new int[w*h];
+        int nSeeds = findSeeds(inside, dist, owner, w, h);
+        if(nSeeds<2) return null;
+        return flood(inside, dist, owner, w, h);
+    }
+
+    // Felzenszwalb & Huttenlocher's exact squared distance transform. For a binary input the column pass is
+    // just the distance to the nearest background pixel above or below; the row pass takes the lower envelope.
+    // The crop is padded with background, so every distance is finite.
+    static int[] getSquaredEDT(boolean[] inside, int w, int h){
+        int[] cols = new int[w*h];
+        for(int x=0; x<w; x++){
+            int g = 0;
+            for(int y=0; y<h; y++){
+                int p = y*w+x;
+                g = inside[p] ? g+1 : 0;
+                cols[p] = g;
+            }
+            g = 0;
+            for(int y=h-1; y>=0; y--){
+                int p = y*w+x;
+                g = inside[p] ? g+1 : 0;
+                if(g<cols[p]) cols[p] = g;
+            }
+        }
+
+        double[] f = new double[w], d = new double[w], z = new double[w+1];
+        int[] v = new int[w];
+        int[] dist = new int[w*h];
+        for(int y=0; y<h; y++){
+            for(int x=0; x<w; x++){
+                int g = cols[y*w+x];
+                f[x] = (double) g*g;
+            }
+            transform1D(f, w, d, v, z);
+            for(int x=0; x<w; x++) dist[y*w+x] = (int) d[x];
+        }
+        return dist;
+    }
+
+    // lower envelope of the parabolas rooted at each f[q]
+    private static void transform1D(double[] f, int n, double[] d, int[] v, double[] z){
+        int k = 0;
+        v[0] = 0;
+        z[0] = Double.NEGATIVE_INFINITY;
+        z[1] = Double.POSITIVE_INFINITY;
+        for(int q=1; q<n; q++){
+            double s;
+            while(true){
+                int p = v[k];
+                s = ((f[q]+(double) q*q)-(f[p]+(double) p*p))/(2.0*q-2.0*p);
+                if(s>z[k]) break;
+                k--;
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k+1] = Double.POSITIVE_INFINITY;
+        }
+        k = 0;
+        for(int q=0; q<n; q++){
+            while(z[k+1]<q) k++;
+            int p = v[k];
+            d[q] = (double) (q-p)*(q-p)+f[p];
+        }
+    }
+
+    // Local maxima are taken highest first and accepted only if everything reachable while staying within
+    // the tolerance below them is lower and not already claimed, as MaximumFinder does. The plateau of an
+    // accepted maximum becomes its seed.
+    private int findSeeds(boolean[] inside, int[] dist, int[] owner, int w, int h){
+        int nCandidates = 0;
+        long[] candidates = new long[16];
+        for(int y=1; y<h-1; y++){
+            for(int x=1; x<w-1; x++){
+                int p = y*w+x;
+                if(!inside[p] || !isLocalMax(dist, p, w)) continue;
+                if(nCandidates==candidates.length) candidates = Arrays.copyOf(candidates, nCandidates*2);
+                candidates[nCandidates++] = ((long) (Integer.MAX_VALUE-dist[p]) << 32) | p;
+            }
+        }
+        if(nCandidates<2) return nCandidates;
+        Arrays.sort(candidates, 0, nCandidates);
+
+        // visited holds the flood that first reached each pixel; owner is only set for accepted seeds
+        int[] visited = new int[w*h];
+        int[] stack = new int[w*h];
+        int nSeeds = 0;
+        for(int c=0; c<nCandidates; c++){
+            int start = (int) candidates[c];
+            if(visited[start]!=0) continue;
+            int flood = c+1;
+            int peak = dist[start];
+            double floor = Math.sqrt(peak)-tolerance;
+            double floor2 = floor>0 ? floor*floor : 0;
+
+            boolean isMax = true;
+            int top = 0, nVisited = 0;
+            stack[top++] = start;
+            visited[start] = flood;
+            // the stack doubles as the list of visited pixels: entries below nVisited have been expanded
+            while(nVisited<top && isMax){
+                int p = stack[nVisited++];
+                for(int i=0; i<8; i++){
+                    int q = p+DY[i]*w+DX[i];
+                    if(!inside[q] || dist[q]<floor2 || visited[q]==flood) continue;
+                    if(dist[q]>peak || visited[q]!=0){
+                        isMax = false;
+                        break;
+                    }
+                    visited[q] = flood;
+                    stack[top++] = q;
+                }
+            }
+            if(!isMax) continue;
+
+            nSeeds++;
+            for(int i=0; i<top; i++) if(dist[stack[i]]==peak) owner[stack[i]] = nSeeds;
+        }
+        return nSeeds;
+    }
+
+    private static boolean isLocalMax(int[] dist, int p, int w){
+        int v = dist[p];
+        for(int i=0; i<8; i++) if(dist[p+DY[i]*w+DX[i]]>v) return false;
+        return true;
+    }
+
+    // Meyer's flooding from the seeds, highest distance first; a pixel touching two basins becomes a line.
+    // Basins therefore never touch, even diagonally, which is what ParticleAnalyzer's 8-connectivity needs.
+    private static int[] flood(boolean[] inside, int[] dist, int[] owner, int w, int h){
+        final int LINE = -1;
+        boolean[] queued = new boolean[w*h];
+        int maxDistance = 0;
+        for(int d:dist) maxDistance = Math.max(maxDistance, d);
+        PixelQueue queue = new PixelQueue(maxDistance, w*h);
+        for(int p=0; p<w*h; p++){
+            if(owner[p]<=0) continue;
+            queued[p] = true;
+            for(int i=0; i<8; i++){
+                int q = p+DY[i]*w+DX[i];
+                if(inside[q] && owner[q]==0 && !queued[q]){
+                    queued[q] = true;
+                    queue.add(dist[q], q);
+                }
+            }
+        }
+
+        while(!queue.isEmpty()){
+            int p = queue.poll();
+            int basin = 0;
+            for(int i=0; i<8; i++){
+                int o = owner[p+DY[i]*w+DX[i]];
+                if(o<=0) continue;
+                if(basin==0) basin = o;
+                else if(o!=basin){
+                    basin = LINE;
+                    break;
+                }
+            }
+            owner[p] = basin;
+            if(basin==LINE) continue;
+            for(int i=0; i<8; i++){
+                int q = p+DY[i]*w+DX[i];
+                if(inside[q] && owner[q]==0 && !queued[q]){
+                    queued[q] = true;
+                    queue.add(dist[q], q);
+                }
+            }
+        }
+
+        // pixels only reachable through a line would otherwise turn into slivers of their own
+        int n = 0;
+        int[] cleared = new int[16];
+        for(int p=0; p<w*h; p++){
+            if(!inside[p] || owner[p]>0) continue;
+            if(n==cleared.length) cleared = Arrays.copyOf(cleared, n*2);
+            cleared[n++] = p;
+        }
+        return Arrays.copyOf(cleared, n);
+    }
+
+    // Hierarchical queue: one first in first out list per squared distance, emptied from the top down. A pixel
+    // above the current level goes into the current list, as the flood has already risen past it.
+    private static class PixelQueue {
+        private final int[] head, tail, next;
+        private int level, size = 0;
+
+        PixelQueue(int maxDistance, int nPixels){
+            head = new int[maxDistance+1];
+            tail = new int[maxDistance+1];
+            Arrays.fill(head, -1);
+            next = new int[nPixels];
+            level = maxDistance;
+        }
+
+        boolean isEmpty(){
+            return size==0;
+        }
+
+        void add(int distance, int pixel){
+            int l = Math.min(distance, level);
+            next[pixel] = -1;
+            if(head[l]<0) head[l] = pixel;
+            else next[tail[l]] = pixel;
+            tail[l] = pixel;
+            size++;
+        }
+
+        int poll(){
+            while(head[level]<0) level--;
+            int pixel = head[level];
+            head[level] = next[pixel];
+            size--;
+            return pixel;
+        }
+    }
+}
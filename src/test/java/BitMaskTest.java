@@ -0,0 +1,124 @@
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import org.junit.Test;
+
+import java.awt.*;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BitMaskTest {
+
+    private static BitMask random(int w, int h, double density, long seed){
+        Random random = new Random(seed);
+        BitMask mask = new BitMask(w, h);
+        for(int y=0; y<h; y++){
+            for(int x=0; x<w; x++){
+                if(random.nextDouble()<density) mask.set(x, y);
+            }
+        }
+        return mask;
+    }
+
+    @Test
+    public void processorRoundTrip(){
+        BitMask mask = random(130, 7, 0.5, 1);
+        ByteProcessor bp = mask.toByteProcessor();
+        for(int y=0; y<7; y++){
+            for(int x=0; x<130; x++) assertEquals(mask.get(x, y), bp.get(x, y)!=0);
+        }
+        assertArrayEquals(mask.getWords(), BitMask.fromProcessor(bp).getWords());
+    }
+
+    // crops starting and ending on either side of a word boundary, including ones hanging off the mask
+    @Test
+    public void cropAtWordBoundaries(){
+        BitMask mask = random(200, 9, 0.5, 2);
+        for(int x:new int[]{-1, 0, 1, 63, 64, 65, 127, 128, 190}){
+            for(int w:new int[]{1, 63, 64, 65, 70, 128}){
+                Rectangle r = new Rectangle(x, -1, w, 11);
+                BitMask crop = mask.crop(r);
+                int expected = 0;
+                for(int y=0; y<r.height; y++){
+                    for(int cx=0; cx<w; cx++){
+                        int sx = x+cx, sy = r.y+y;
+                        boolean in = sx>=0 && sx<200 && sy>=0 && sy<9 && mask.get(sx, sy);
+                        assertEquals("crop "+r+" at "+cx+","+y, in, crop.get(cx, y));
+                        if(in) expected++;
+                    }
+                }
+                // count() also sees the bits past the crop width, so stray tail bits fail here
+                assertEquals("crop "+r, expected, crop.count());
+            }
+        }
+    }
+
+    @Test
+    public void overlap(){
+        BitMask a = random(150, 20, 0.4, 3), b = random(150, 20, 0.6, 4);
+        Rectangle r = new Rectangle(60, 3, 70, 10);
+        int all = 0, inRect = 0;
+        for(int y=0; y<20; y++){
+            for(int x=0; x<150; x++){
+                if(a.get(x, y) && b.get(x, y)){
+                    all++;
+                    if(r.contains(x, y)) inRect++;
+                }
+            }
+        }
+        assertEquals(all, a.countOverlap(b));
+        assertEquals(inRect, a.countOverlap(b, r));
+        BitMask and = a.duplicate();
+        and.and(b);
+        assertEquals(all, and.count());
+        assertEquals(inRect, a.crop(r).countOverlap(b.crop(r)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overlapNeedsSameSize(){
+        new BitMask(10, 10).countOverlap(new BitMask(11, 10));
+    }
+
+    // the labelling has to find the same particles as ParticleAnalyzer, which the pipeline used before
+    @Test
+    public void labelMatchesParticleAnalyzer(){
+        ImagePlus slide = new SyntheticSlide(700, 500, 400, 3, 7).generate(0);
+        for(int slice=1; slice<=2; slice++){
+            ByteProcessor bp = (ByteProcessor) slide.getStack().getProcessor(slice);
+            BitMask.Labels labels = BitMask.fromProcessor(bp).label();
+
+            ResultsTable rt = new ResultsTable();
+            ParticleAnalyzer pa = new ParticleAnalyzer(0, ParticleAnalyzer.AREA, rt, 0, Double.POSITIVE_INFINITY);
+            pa.setHideOutputImage(true);
+            ByteProcessor copy = (ByteProcessor) bp.duplicate();
+            copy.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+            pa.analyze(new ImagePlus("", copy), copy);
+
+            assertEquals(rt.size(), labels.nLabels);
+            int[] areas = labels.getAreas();
+            long total = 0;
+            for(int i=1; i<=labels.nLabels; i++) total += areas[i];
+            double expected = 0;
+            for(int i=0; i<rt.size(); i++) expected += rt.getValue("Area", i);
+            assertEquals(expected, total, 0);
+        }
+    }
+
+    @Test
+    public void labelJoinsDiagonals(){
+        BitMask mask = new BitMask(130, 3);
+        mask.set(63, 0);
+        mask.set(64, 1);
+        mask.set(66, 1);
+        mask.set(0, 2);
+        BitMask.Labels labels = mask.label();
+        assertEquals(3, labels.nLabels);
+        int[] image = labels.toLabelImage();
+        assertEquals(image[63], image[130+64]);
+        assertNotEquals(image[130+64], image[130+66]);
+        assertEquals(new Rectangle(63, 0, 2, 2), labels.getBounds()[image[63]]);
+    }
+}
@@ -0,0 +1,83 @@
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CellTrackerTest {
+
+    private static BitMask mask(Roi[] rois){
+        ByteProcessor bp = new ByteProcessor(400, 400);
+        bp.setColor(255);
+        for(Roi roi:rois) bp.fill(roi);
+        return BitMask.fromProcessor(bp);
+    }
+
+    private static String describe(CellTracker.Link[] links){
+        StringBuilder sb = new StringBuilder();
+        for(CellTracker.Link l:links){
+            sb.append(l.trackId).append('/').append(l.parentTrackId);
+            if(!l.event.equals(CellTracker.NO_EVENT)) sb.append('/').append(l.event);
+            sb.append(' ');
+        }
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void movementDivisionAndLoss(){
+        CellTracker tracker = new CellTracker(15, 0.5);
+        Roi[] f1 = {new OvalRoi(10, 10, 30, 30), new OvalRoi(100, 10, 30, 30), new OvalRoi(200, 200, 20, 20)};
+        // the first two swap places in the list and drift; the third splits into two halves
+        Roi[] f2 = {new OvalRoi(105, 12, 30, 30), new OvalRoi(14, 12, 30, 30), new OvalRoi(200, 200, 11, 20), new OvalRoi(209, 200, 11, 20)};
+        // a new cell appears, and only one of the old ones is left
+        Roi[] f3 = {new OvalRoi(300, 300, 10, 10), new OvalRoi(18, 14, 30, 30)};
+        assertEquals("1/0 2/0 3/0", describe(tracker.link(f1, mask(f1))));
+        assertEquals("2/0 1/0 3/0 4/3/division", describe(tracker.link(f2, mask(f2))));
+        assertEquals("5/0 1/0", describe(tracker.link(f3, mask(f3))));
+    }
+
+    @Test
+    public void fusion(){
+        CellTracker tracker = new CellTracker(15, 0.5);
+        Roi[] f1 = {new OvalRoi(100, 100, 20, 20), new OvalRoi(120, 100, 20, 20)};
+        Roi[] f2 = {new OvalRoi(100, 100, 40, 20)};
+        tracker.link(f1, mask(f1));
+        assertEquals("1/0/fusion", describe(tracker.link(f2, mask(f2))));
+    }
+
+    private static NucleusCounter traceCells(ImagePlus imp){
+        NucleusCounter nc = new NucleusCounter(imp, 1, 2);
+        nc.setMeasurements(true, true, false, false, false, false, false, false);
+        nc.getCellRois(0, Double.POSITIVE_INFINITY, 0, 1, false, false);
+        return nc;
+    }
+
+    // every cell of a slide moved by a few pixels keeps its track
+    @Test
+    public void shiftedSlideKeepsTracks(){
+        ImagePlus slide = new SyntheticSlide(600, 500, 400, 2, 5).generate(0);
+        CellTracker tracker = new CellTracker(10, 0.5);
+
+        NucleusCounter first = traceCells(slide);
+        CellTracker.Link[] links = tracker.link(first.getCellRoiArray(), first.getCellMask());
+
+        ImagePlus shifted = slide.duplicate();
+        for(int c=1; c<=2; c++){
+            ImageProcessor ip = shifted.getStack().getProcessor(c);
+            ip.setBackgroundValue(0);
+            ip.translate(4, 3);
+        }
+        NucleusCounter second = traceCells(shifted);
+        CellTracker.Link[] next = tracker.link(second.getCellRoiArray(), second.getCellMask());
+
+        assertTrue(links.length>50);
+        assertEquals(links.length, next.length);
+        for(int i=0; i<next.length; i++){
+            assertEquals(links[i].trackId, next[i].trackId);
+            assertEquals(CellTracker.NO_EVENT, next[i].event);
+        }
+    }
+}
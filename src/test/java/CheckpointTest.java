@@ -0,0 +1,120 @@
+import ij.ImagePlus;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, String text) throws IOException {
+        File f = new File(folder.getRoot(), name);
+        Files.write(f.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return f;
+    }
+
+    @Test
+    public void verifiesLengthAndCRC() throws IOException {
+        Checkpoint checkpoint = new Checkpoint(folder.getRoot().getPath());
+        new File(folder.getRoot(), Checkpoint.DIR).mkdirs();
+        File a = write("a.csv", "1,2,3\n"), b = write("b.csv", "4,5,6\n"), c = write("c.csv", "7,8,9\n");
+        checkpoint.recordCell(0, Arrays.asList(a, b, c));
+        checkpoint.flush();
+
+        String[] recorded = checkpoint.loadProgress().get(0);
+        assertEquals(Arrays.asList("a.csv", "b.csv", "c.csv"), checkpoint.getVerifiedFiles(recorded));
+
+        write("b.csv", "4,5,7\n");
+        assertTrue(c.delete());
+        assertEquals(Collections.singletonList("a.csv"), checkpoint.getVerifiedFiles(recorded));
+        write("a.csv", "1,2,3,\n");
+        assertTrue(checkpoint.getVerifiedFiles(recorded).isEmpty());
+    }
+
+    @Test
+    public void ignoresUnfinishedLines() throws IOException {
+        Checkpoint checkpoint = new Checkpoint(folder.getRoot().getPath());
+        File dir = new File(folder.getRoot(), Checkpoint.DIR);
+        dir.mkdirs();
+        File a = write("a.csv", "a"), b = write("b.csv", "b");
+        checkpoint.recordCell(0, Collections.singletonList(a));
+        checkpoint.recordCell(1, Collections.singletonList(a));
+        checkpoint.recordCell(1, Arrays.asList(a, b));
+        checkpoint.flush();
+
+        // a line the writer never finished, then one cut off by a crash
+        File progress = new File(dir, "progress.tsv");
+        Files.write(progress.toPath(), ("2\ta.csv\t1\t"+Checkpoint.getCRC(a)+"\n3\ta.csv\t1\t"+Checkpoint.getCRC(a)+"\to").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        HashMap<Integer, String[]> loaded = checkpoint.loadProgress();
+        assertEquals(new HashSet<>(Arrays.asList(0, 1)), loaded.keySet());
+        // the later line for a cell wins
+        assertEquals(6, loaded.get(1).length);
+        assertFalse(checkpoint.isComplete());
+        checkpoint.finish();
+        assertTrue(checkpoint.isComplete());
+    }
+
+    private static NucleusCounter run(ImagePlus imp, String saveDir) throws IOException {
+        NucleusCounter nc = new NucleusCounter(imp, 1, 2);
+        nc.setShowResults(false);
+        nc.setSavePaths(saveDir, NucleusCounter.makeDirectory(saveDir+File.separator+"local rois"),
+                NucleusCounter.makeDirectory(saveDir+File.separator+"tables"), NucleusCounter.makeDirectory(saveDir+File.separator+"crops"));
+        nc.setMeasurements(true, false, false, true, true, true, false, false);
+        nc.getCellRois(0, Double.POSITIVE_INFINITY, 0, 1, false, false);
+        nc.getNucleusRois(0, Double.POSITIVE_INFINITY, 0, 1, false, false);
+        nc.matchNucleiToCells_v2();
+        nc.analyseAllRois_v2();
+        return nc;
+    }
+
+    // a rerun after a crash rewrites exactly the files that are missing, damaged or not yet recorded
+    @Test
+    public void resumedRunRewritesOnlyDamagedFiles() throws IOException {
+        SyntheticSlide slide = new SyntheticSlide(800, 600, 300, 2, 4);
+        String saveDir = NucleusCounter.makeDirectory(folder.getRoot()+File.separator+"out");
+        run(slide.generate(0), saveDir);
+        File out = new File(saveDir);
+        TreeMap<String, byte[]> reference = OutputFiles.read(out, Checkpoint.DIR);
+
+        File deleted = new File(out, "tables"+File.separator+new File(out, "tables").list()[0]);
+        assertTrue(deleted.delete());
+        String[] crops = new File(out, "crops").list();
+        Arrays.sort(crops);
+        File corrupted = new File(out, "crops"+File.separator+crops[5]);
+        Files.write(corrupted.toPath(), new byte[]{1, 2, 3});
+        File progress = new File(out, Checkpoint.DIR+File.separator+"progress.tsv");
+        byte[] bytes = Files.readAllBytes(progress.toPath());
+        Files.write(progress.toPath(), Arrays.copyOf(bytes, bytes.length*2/3));
+        assertTrue(new File(out, Checkpoint.DIR+File.separator+"complete").delete());
+
+        // the first two thirds of the cells are still recorded, and nothing from them should be written again
+        HashSet<String> untouched = new HashSet<>();
+        for(String[] files:new Checkpoint(saveDir).loadProgress().values()){
+            for(int i=0; i<files.length; i+=3) untouched.add(files[i]);
+        }
+        untouched.remove("tables"+File.separator+deleted.getName());
+        untouched.remove("crops"+File.separator+corrupted.getName());
+        assertTrue(untouched.size()>100);
+        long old = 1000000000000L;
+        for(String f:untouched) assertTrue(new File(out, f).setLastModified(old));
+
+        run(slide.generate(0), saveDir);
+        assertTrue(new Checkpoint(saveDir).isComplete());
+        TreeMap<String, byte[]> resumed = OutputFiles.read(out, Checkpoint.DIR);
+        assertEquals(reference.keySet(), resumed.keySet());
+        for(String name:reference.keySet()) assertArrayEquals(name, reference.get(name), resumed.get(name));
+        for(String f:untouched) assertEquals(f, old, new File(out, f).lastModified());
+    }
+}
@@ -0,0 +1,110 @@
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import org.apache.commons.math3.stat.StatUtils;
+import org.junit.Test;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ContainmentTreeTest {
+
+    private static long area(Roi roi){
+        Rectangle r = roi.getBounds();
+        return (long) r.width*r.height;
+    }
+
+    // the tightest containing Roi, by a scan over all of them
+    private static int findParent(Roi[] parents, Point p){
+        int best = -1;
+        for(int i=0; i<parents.length; i++){
+            if(parents[i].contains(p.x, p.y) && (best<0 || area(parents[i])<area(parents[best]))) best = i;
+        }
+        return best;
+    }
+
+    private static void assertStat(double expected, double actual){
+        if(Double.isNaN(expected)) assertTrue(Double.isNaN(actual));
+        else assertEquals(expected, actual, 1e-9);
+    }
+
+    @Test
+    public void parentsAndRollUpMatchBruteForce(){
+        Random random = new Random(3);
+        int nCells = 150, nNuclei = 600, nSpots = 2000, size = 1000;
+        Roi[] cells = new Roi[nCells], nuclei = new Roi[nNuclei], spots = new Roi[nSpots];
+        Point[] nucleusCentres = new Point[nNuclei], spotCentres = new Point[nSpots];
+        for(int i=0; i<nCells; i++){
+            cells[i] = new OvalRoi(random.nextInt(size), random.nextInt(size), 20+random.nextInt(60), 20+random.nextInt(60));
+        }
+        for(int i=0; i<nNuclei; i++){
+            nucleusCentres[i] = new Point(random.nextInt(size+60), random.nextInt(size+60));
+            nuclei[i] = new OvalRoi(nucleusCentres[i].x-5, nucleusCentres[i].y-5, 11, 11);
+        }
+        for(int i=0; i<nSpots; i++){
+            spotCentres[i] = new Point(random.nextInt(size+60), random.nextInt(size+60));
+            spots[i] = new Roi(spotCentres[i].x, spotCentres[i].y, 1, 1);
+        }
+        ContainmentTree tree = new ContainmentTree(new Roi[][]{cells, nuclei, spots}, new Point[][]{null, nucleusCentres, spotCentres});
+
+        double[] nucleusValues = new double[nNuclei], spotValues = new double[nSpots];
+        for(int i=0; i<nNuclei; i++) nucleusValues[i] = random.nextGaussian()*5+10;
+        for(int i=0; i<nSpots; i++) spotValues[i] = random.nextGaussian()+3;
+        LinkedHashMap<String, double[]> nucleusColumns = new LinkedHashMap<>(), spotColumns = new LinkedHashMap<>();
+        nucleusColumns.put("A", nucleusValues);
+        spotColumns.put("A", spotValues);
+        ContainmentTree.RollUp rollUp = tree.rollUp(Arrays.asList(null, nucleusColumns, spotColumns), new String[]{"A"});
+
+        for(int j=0; j<nNuclei; j++) assertEquals(findParent(cells, nucleusCentres[j]), tree.getParent(1, j));
+        for(int j=0; j<nSpots; j++) assertEquals(findParent(nuclei, spotCentres[j]), tree.getParent(2, j));
+
+        for(int i=0; i<nCells; i++){
+            ArrayList<Double> inCell = new ArrayList<>(), inNuclei = new ArrayList<>();
+            for(int j:tree.getChildren(0, i)){
+                assertEquals(i, tree.getParent(1, j));
+                inCell.add(nucleusValues[j]);
+                for(int k:tree.getChildren(1, j)) inNuclei.add(spotValues[k]);
+            }
+            assertEquals(inCell.size(), tree.getNChildren(0, i));
+            double[] a = inCell.stream().mapToDouble(Double::doubleValue).toArray();
+            double[] b = inNuclei.stream().mapToDouble(Double::doubleValue).toArray();
+            assertEquals(a.length, rollUp.getCount(0, 1, i), 0);
+            assertEquals(b.length, rollUp.getCount(0, 2, i), 0);
+            assertStat(StatUtils.mean(a), rollUp.getMean(0, 1, 0, i));
+            assertStat(Math.sqrt(StatUtils.variance(a)), rollUp.getStd(0, 1, 0, i));
+            assertStat(StatUtils.mean(b), rollUp.getMean(0, 2, 0, i));
+            assertStat(Math.sqrt(StatUtils.variance(b)), rollUp.getStd(0, 2, 0, i));
+        }
+    }
+
+    // a centre inside a cell that sits in another cell's hole belongs to the inner cell
+    @Test
+    public void tightestParentWins(){
+        Roi outer = new OvalRoi(0, 0, 100, 100), inner = new OvalRoi(40, 40, 20, 20);
+        Point[] centres = {new Point(50, 50), new Point(20, 50), new Point(200, 200)};
+        Roi[] children = new Roi[centres.length];
+        for(int i=0; i<centres.length; i++) children[i] = new Roi(centres[i].x, centres[i].y, 1, 1);
+        ContainmentTree tree = new ContainmentTree(new Roi[][]{{outer, inner}, children}, new Point[][]{null, centres});
+        assertEquals(1, tree.getParent(1, 0));
+        assertEquals(0, tree.getParent(1, 1));
+        assertEquals(-1, tree.getParent(1, 2));
+        assertArrayEquals(new int[]{1}, tree.getChildren(0, 0));
+    }
+
+    @Test
+    public void emptyLevel(){
+        Roi[] cells = {new OvalRoi(0, 0, 50, 50)};
+        ContainmentTree tree = new ContainmentTree(new Roi[][]{cells, new Roi[0], new Roi[0]}, new Point[][]{null, new Point[0], new Point[0]});
+        assertEquals(0, tree.size(1));
+        assertEquals(0, tree.getNChildren(0, 0));
+        LinkedHashMap<String, double[]> empty = new LinkedHashMap<>();
+        empty.put("A", new double[0]);
+        ContainmentTree.RollUp rollUp = tree.rollUp(Arrays.asList(null, empty, empty), new String[]{"A"});
+        assertEquals(0, rollUp.getCount(0, 2, 0), 0);
+        assertTrue(Double.isNaN(rollUp.getMean(0, 1, 0, 0)));
+    }
+}
@@ -0,0 +1,68 @@
+import ij.ImagePlus;
+import ij.plugin.Duplicator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class NucleusCounterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NucleusCounter run(ImagePlus imp, String name, long nucleusStripMemory, boolean excludeEdge) throws IOException {
+        NucleusCounter nc = new NucleusCounter(imp, 1, 2);
+        nc.setShowResults(false);
+        nc.setNucleusStripMemory(nucleusStripMemory);
+        String saveDir = NucleusCounter.makeDirectory(folder.getRoot()+File.separator+name);
+        nc.setSavePaths(saveDir, NucleusCounter.makeDirectory(saveDir+File.separator+"local rois"),
+                NucleusCounter.makeDirectory(saveDir+File.separator+"tables"), NucleusCounter.makeDirectory(saveDir+File.separator+"crops"));
+        nc.setMeasurements(true, true, true, true, true, true, true, true);
+        nc.getCellRois(0, Double.POSITIVE_INFINITY, 0, 1, false, false);
+        nc.getNucleusRois(5, Double.POSITIVE_INFINITY, 0, 1, excludeEdge, true);
+        nc.matchNucleiToCells_v2();
+        nc.analyseAllRois_v2();
+        nc.getSummaryTable().save(saveDir+File.separator+"Summary Results.csv");
+        return nc;
+    }
+
+    // a crop off the grid, so cells and nuclei are cut by the image edges as well as by the strips
+    private static ImagePlus makeImage(){
+        SyntheticSlide slide = new SyntheticSlide(1000, 940, 500, 2, 3);
+        ImagePlus imp = slide.generate(0);
+        imp.setRoi(new Rectangle(7, 11, 980, 910));
+        return new Duplicator().run(imp);
+    }
+
+    // nuclei spilled to disk strip by strip give the same files as nuclei held on the heap; the result
+    // store and checkpoint are only written on the heap
+    @Test
+    public void stripModeMatchesWholeImage() throws IOException {
+        ImagePlus imp = makeImage();
+        for(boolean excludeEdge:new boolean[]{false, true}){
+            NucleusCounter whole = run(imp, "whole-"+excludeEdge, 0, excludeEdge);
+            // about 100 rows per strip at 16 bytes per pixel and a 128 row halo above and below
+            NucleusCounter strips = run(imp, "strips-"+excludeEdge, 980L*16*(100+2*128), excludeEdge);
+            assertTrue(whole.getNNuclei()>500);
+            assertEquals(whole.getNNuclei(), strips.getNNuclei());
+            OutputFiles.assertSame(new File(folder.getRoot(), "whole-"+excludeEdge), new File(folder.getRoot(), "strips-"+excludeEdge),
+                    Checkpoint.DIR, ResultStore.FILE_NAME);
+        }
+    }
+
+    // too little memory for even one strip falls back to the smallest strips instead of failing
+    @Test
+    public void smallestStrips() throws IOException {
+        ImagePlus imp = makeImage();
+        NucleusCounter whole = run(imp, "whole", 0, false);
+        NucleusCounter strips = run(imp, "strips", 1, false);
+        assertEquals(whole.getNNuclei(), strips.getNNuclei());
+        OutputFiles.assertSame(new File(folder.getRoot(), "whole"), new File(folder.getRoot(), "strips"),
+                Checkpoint.DIR, ResultStore.FILE_NAME);
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+// Compares the files two runs wrote. Zip files are compared entry by entry, since the entries carry the
+// time they were written.
+class OutputFiles {
+
+    // relative path -> contents of every file under dir, skipping names that contain any of skip
+    static TreeMap<String, byte[]> read(File dir, String... skip) throws IOException {
+        TreeMap<String, byte[]> files = new TreeMap<>();
+        read(dir, "", files, skip);
+        return files;
+    }
+
+    private static void read(File dir, String prefix, TreeMap<String, byte[]> files, String[] skip) throws IOException {
+        File[] list = dir.listFiles();
+        assertNotNull("not a directory: "+dir, list);
+        outer:
+        for(File f:list){
+            for(String s:skip) if(f.getName().contains(s)) continue outer;
+            if(f.isDirectory()) read(f, prefix+f.getName()+"/", files, skip);
+            else files.put(prefix+f.getName(), f.getName().endsWith(".zip") ? readZip(f) : Files.readAllBytes(f.toPath()));
+        }
+    }
+
+    private static byte[] readZip(File f) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(ZipInputStream in = new ZipInputStream(new FileInputStream(f))){
+            ZipEntry e;
+            byte[] buffer = new byte[8192];
+            while((e = in.getNextEntry())!=null){
+                out.write((e.getName()+"\n").getBytes("UTF-8"));
+                int n;
+                while((n = in.read(buffer))>0) out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static void assertSame(File expected, File actual, String... skip) throws IOException {
+        TreeMap<String, byte[]> a = read(expected, skip), b = read(actual, skip);
+        assertFalse("no files in "+expected, a.isEmpty());
+        for(String name:a.keySet()){
+            assertTrue(name+" missing from "+actual, b.containsKey(name));
+            assertTrue(name+" differs", Arrays.equals(a.get(name), b.get(name)));
+        }
+        b.keySet().removeAll(a.keySet());
+        assertTrue("extra files in "+actual+": "+b.keySet(), b.isEmpty());
+    }
+}
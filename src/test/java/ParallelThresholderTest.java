@@ -0,0 +1,67 @@
+import ij.process.*;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ParallelThresholderTest {
+
+    // two populations of grey values, offset and scaled so 16- and 32-bit images use more than 8 bits
+    private static ImageProcessor makeImage(String type, Random random){
+        int w = 300, h = 200;
+        ImageProcessor ip = type.equals("8") ? new ByteProcessor(w, h) : type.equals("16") ? new ShortProcessor(w, h) : new FloatProcessor(w, h);
+        double offset = random.nextInt(1000), scale = type.equals("8") ? 1 : 1+random.nextInt(40);
+        for(int i=0; i<w*h; i++){
+            double v = Math.max(0, (random.nextDouble()<0.3 ? 150 : 60)+random.nextGaussian()*25);
+            if(type.equals("8")) v = Math.min(255, v);
+            else v = offset+v*scale;
+            ip.setf(i, (float) v);
+        }
+        return ip;
+    }
+
+    @Test
+    public void matchesImageJ(){
+        Random random = new Random(5);
+        for(String type:new String[]{"8", "16", "32"}){
+            for(int m=1; m<ParallelThresholder.METHODS.length; m++){
+                String method = ParallelThresholder.METHODS[m];
+                for(boolean dark:new boolean[]{true, false}){
+                    for(int trial=0; trial<5; trial++){
+                        ImageProcessor ip = makeImage(type, random);
+                        BitMask mask = new ParallelThresholder(3).toMask(ip, method, dark);
+
+                        ImageProcessor ij = ip.duplicate();
+                        ij.resetMinAndMax();
+                        ij.setAutoThreshold(AutoThresholder.Method.valueOf(method), dark, ImageProcessor.NO_LUT_UPDATE);
+                        double lower = ij.getMinThreshold(), upper = ij.getMaxThreshold();
+                        for(int y=0; y<ip.getHeight(); y++){
+                            for(int x=0; x<ip.getWidth(); x++){
+                                float v = ip.getf(x, y);
+                                assertEquals(type+"-bit "+method+" dark="+dark+" at "+x+","+y, v>=lower && v<=upper, mask.get(x, y));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sameMaskForAnyNumberOfThreads(){
+        ImageProcessor ip = makeImage("32", new Random(6));
+        long[] one = new ParallelThresholder(1).toMask(ip, "Li", true).getWords();
+        for(int n:new int[]{2, 7, 16}) assertArrayEquals(one, new ParallelThresholder(n).toMask(ip, "Li", true).getWords());
+    }
+
+    @Test
+    public void binaryImagesAreNotThresholded(){
+        ByteProcessor bp = new ByteProcessor(70, 5);
+        bp.set(3, 2, 255);
+        bp.set(66, 4, 1);
+        BitMask mask = new ParallelThresholder(2).toMask(bp, ParallelThresholder.NONE, true);
+        assertEquals(2, mask.count());
+        assertTrue(mask.get(66, 4));
+    }
+}
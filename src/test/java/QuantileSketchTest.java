@@ -0,0 +1,125 @@
+import org.apache.commons.math3.stat.StatUtils;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QuantileSketchTest {
+
+    // the stated rank error is about 1.7/k; the bound leaves room for an unlucky draw of offsets
+    private static final double MAX_RANK_ERROR = 2.5/QuantileSketch.DEFAULT_K;
+
+    private static double[] makeValues(int n, long seed){
+        Random random = new Random(seed);
+        double[] values = new double[n];
+        // skewed, with repeated values mixed in
+        for(int i=0; i<n; i++) values[i] = i%5==0 ? 100 : Math.exp(random.nextGaussian())*100+(i%7);
+        return values;
+    }
+
+    // largest difference between q and the fraction of values below the quantile the sketch gives for q
+    private static double getMaxRankError(QuantileSketch sketch, double[] sorted){
+        double worst = 0;
+        for(int i=1; i<100; i++){
+            double q = i/100.0, v = sketch.getQuantile(q);
+            int below = lowerBound(sorted, v), atOrBelow = lowerBound(sorted, Math.nextUp(v));
+            // a value repeated many times covers a range of ranks; any rank in it is right
+            double lo = below/(double) sorted.length, hi = atOrBelow/(double) sorted.length;
+            worst = Math.max(worst, q<lo ? lo-q : q>hi ? q-hi : 0);
+        }
+        return worst;
+    }
+
+    private static int lowerBound(double[] sorted, double v){
+        int i = Arrays.binarySearch(sorted, v);
+        if(i<0) return -i-1;
+        while(i>0 && sorted[i-1]==v) i--;
+        return i;
+    }
+
+    @Test
+    public void rankErrorWithinBounds(){
+        double[] values = makeValues(300000, 1);
+        QuantileSketch sketch = new QuantileSketch();
+        for(double v:values) sketch.update(v);
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        assertEquals(values.length, sketch.getN());
+        double error = getMaxRankError(sketch, sorted);
+        assertTrue("rank error "+error, error<=MAX_RANK_ERROR);
+        // memory stays around 3k values
+        assertTrue(sketch.toString().split("[ ,]").length<5*QuantileSketch.DEFAULT_K);
+    }
+
+    // sketches of parts, written out and read back as workers do, merged in different orders
+    @Test
+    public void mergedRankErrorWithinBounds(){
+        double[] values = makeValues(300000, 2);
+        int nParts = 37;
+        QuantileSketch[] parts = new QuantileSketch[nParts];
+        for(int p=0; p<nParts; p++) parts[p] = new QuantileSketch();
+        Random random = new Random(3);
+        for(double v:values) parts[random.nextInt(nParts)].update(v);
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        QuantileSketch forward = new QuantileSketch(), backward = new QuantileSketch();
+        for(int p=0; p<nParts; p++){
+            forward.merge(QuantileSketch.parse(parts[p].toString()));
+            backward.merge(parts[nParts-1-p]);
+        }
+        for(QuantileSketch merged:new QuantileSketch[]{forward, backward}){
+            assertEquals(values.length, merged.getN());
+            double error = getMaxRankError(merged, sorted);
+            assertTrue("rank error "+error, error<=MAX_RANK_ERROR);
+        }
+    }
+
+    // nothing is compacted until k values are held
+    @Test
+    public void exactWhileSmall(){
+        double[] values = makeValues(QuantileSketch.DEFAULT_K-1, 4);
+        QuantileSketch sketch = new QuantileSketch();
+        for(double v:values) sketch.update(v);
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for(int i=1; i<=sorted.length; i++) assertEquals(sorted[i-1], sketch.getQuantile((i-0.5)/sorted.length), 0);
+        assertTrue(Double.isNaN(new QuantileSketch().getQuantile(0.5)));
+    }
+
+    @Test
+    public void textRoundTrip(){
+        QuantileSketch sketch = new QuantileSketch(50);
+        for(double v:makeValues(10000, 5)) sketch.update(v);
+        QuantileSketch copy = QuantileSketch.parse(sketch.toString());
+        assertEquals(sketch.toString(), copy.toString());
+        assertEquals(sketch.getN(), copy.getN());
+        double[] qs = {0, 0.1, 0.5, 0.9, 1};
+        assertArrayEquals(sketch.getQuantiles(qs), copy.getQuantiles(qs), 0);
+    }
+
+    @Test
+    public void summaryMergeIsExact(){
+        double[] values = makeValues(100000, 6);
+        DatasetStatistics.Summary whole = new DatasetStatistics.Summary(), merged = new DatasetStatistics.Summary();
+        DatasetStatistics.Summary part = new DatasetStatistics.Summary();
+        for(int i=0; i<values.length; i++){
+            whole.add(values[i]);
+            part.add(values[i]);
+            if(i%9999==0){
+                merged.merge(part);
+                part = new DatasetStatistics.Summary();
+            }
+        }
+        merged.merge(part);
+        double mean = StatUtils.mean(values), std = Math.sqrt(StatUtils.variance(values));
+        for(DatasetStatistics.Summary s:new DatasetStatistics.Summary[]{whole, merged}){
+            assertEquals(values.length, s.getN());
+            assertEquals(mean, s.getMean(), 1e-9*mean);
+            assertEquals(std, s.getStd(), 1e-9*std);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import ij.ImagePlus;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.function.DoublePredicate;
+
+import static org.junit.Assert.*;
+
+public class ResultStoreTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+    private static SyntheticSlide slide;
+    private static File runDir;
+    private static ResultStore store;
+
+    @BeforeClass
+    public static void analyse() throws IOException {
+        slide = new SyntheticSlide(900, 700, 300, 2.5, 11);
+        ImagePlus imp = slide.generate(0);
+        String saveDir = NucleusCounter.makeDirectory(folder.getRoot()+File.separator+"run"+File.separator+imp.getTitle()+" - results");
+        NucleusCounter nc = new NucleusCounter(imp, 1, 2);
+        nc.setShowResults(false);
+        nc.setSaveStore(true);
+        nc.setSavePaths(saveDir, NucleusCounter.makeDirectory(saveDir+File.separator+"local rois"),
+                NucleusCounter.makeDirectory(saveDir+File.separator+"tables"), NucleusCounter.makeDirectory(saveDir+File.separator+"crops"));
+        nc.setMeasurements(true, false, true, true, true, true, false, false);
+        nc.getCellRois(0, Double.POSITIVE_INFINITY, 0, 1, false, false);
+        nc.getNucleusRois(0, Double.POSITIVE_INFINITY, 0, 1, false, false);
+        nc.matchNucleiToCells_v2();
+        nc.analyseAllRois_v2();
+        nc.getSummaryTable().save(saveDir+File.separator+"Summary Results.csv");
+
+        runDir = new File(saveDir);
+        store = ResultStore.load(new File(runDir, ResultStore.FILE_NAME));
+    }
+
+    @Test
+    public void storesEveryCellAndNucleus(){
+        assertEquals(slide.getNCells(), store.getNCells());
+        double total = 0;
+        for(double n:store.getCellColumn("N nuclei in cell")) total += n;
+        assertEquals(slide.getNNuclei(), total, 0);
+    }
+
+    private static void assertSelects(String predicate, String column, DoublePredicate test){
+        double[] values = store.getCellColumn(column);
+        BitSet expected = new BitSet();
+        for(int i=0; i<values.length; i++) if(test.test(values[i])) expected.set(i);
+        assertEquals(predicate, expected, store.select(predicate));
+    }
+
+    @Test
+    public void selectMatchesScan(){
+        double[] n = store.getCellColumn("N nuclei in cell");
+        assertSelects("N nuclei in cell >= 2", "N nuclei in cell", v -> v>=2);
+        assertSelects("N nuclei in cell > 2", "N nuclei in cell", v -> v>2);
+        assertSelects("N nuclei in cell <= 1", "N nuclei in cell", v -> v<=1);
+        assertSelects("N nuclei in cell < 1", "N nuclei in cell", v -> v<1);
+        assertSelects("N nuclei in cell == 3", "N nuclei in cell", v -> v==3);
+        assertSelects("N nuclei in cell != 3", "N nuclei in cell", v -> v!=3);
+        assertSelects("N nuclei in cell >= -1e9", "N nuclei in cell", v -> true);
+
+        // cells without nuclei have NaN mean areas, which match nothing, not even !=
+        double[] area = store.getCellColumn("Area mean");
+        assertNotNull(area);
+        double median = area[area.length/2];
+        assertSelects("Area mean != "+median, "Area mean", v -> !Double.isNaN(v) && v!=median);
+        assertSelects("Area mean < "+median, "Area mean", v -> v<median);
+
+        double cellMedian = store.getCellColumn("Cell Area")[store.getNCells()/2];
+        BitSet expected = new BitSet();
+        for(int i=0; i<n.length; i++) if(n[i]>=2 && store.getCellColumn("Cell Area")[i]>cellMedian) expected.set(i);
+        assertEquals(expected, store.select("N nuclei in cell >= 2 && Cell Area > "+cellMedian));
+        assertEquals(expected, store.select("N nuclei in cell>=2 AND Cell Area>"+cellMedian));
+        assertEquals(store.getNCells(), store.select(" ").cardinality());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownColumn(){
+        store.select("Volume > 3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unreadableClause(){
+        store.select("N nuclei in cell about 3");
+    }
+
+    // re-exporting every cell from the store writes what the analysis wrote
+    @Test
+    public void exportAllMatchesRun() throws IOException {
+        BitSet all = store.select("");
+        File exportDir = folder.newFolder("export");
+        store.export(all, exportDir.getPath(), true, true, true);
+        OutputFiles.assertSame(runDir, new File(exportDir, store.getTitle()+" - results"),
+                ResultStore.FILE_NAME, Checkpoint.DIR, "Dataset statistics");
+    }
+}
@@ -0,0 +1,76 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ImageProcessor;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ShardTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+    private static String image;
+
+    // a raw-looking float image, so the thresholds planned per image are exercised too
+    @BeforeClass
+    public static void makeImage() throws IOException {
+        ImagePlus slide = new SyntheticSlide(768, 640, 1500, 2, 3).generate(0);
+        ImageStack stack = slide.getImageStack().convertToFloat();
+        Random random = new Random(1);
+        for(int c=1; c<=stack.getSize(); c++){
+            ImageProcessor ip = stack.getProcessor(c);
+            ip.multiply(100);
+            new GaussianBlur().blurGaussian(ip, 1.5);
+            float[] pixels = (float[]) ip.getPixels();
+            for(int i=0; i<pixels.length; i++) pixels[i] += 20*random.nextFloat();
+        }
+        image = new File(folder.getRoot(), "slide.tif").getPath();
+        assertTrue(IJ.saveAsTiff(new ImagePlus("slide", stack), image));
+    }
+
+    private static File run(String name, int tileSize, boolean split) throws IOException {
+        Properties settings = new Properties();
+        settings.setProperty("cell.threshold", "Otsu");
+        settings.setProperty("nuclei.threshold", "Otsu");
+        settings.setProperty("saveResults", "true");
+        settings.setProperty("tileSize", ""+tileSize);
+        settings.setProperty("tileHalo", "48");
+        settings.setProperty("cell.split", ""+split);
+        settings.setProperty("nuclei.split", ""+split);
+        File shardDir = new File(folder.getRoot(), name);
+        ShardManifest manifest = ShardManifest.create(shardDir, settings, Collections.singletonList(image));
+        assertEquals(tileSize>0 ? 9 : 1, manifest.getUnits().size());
+
+        new ShardWorker(ShardManifest.load(shardDir), "test").run();
+        new ShardMerger(ShardManifest.load(shardDir)).merge();
+        return new File(shardDir, "output");
+    }
+
+    // the dataset statistics merge quantile sketches, which is only approximately order independent
+    private static void assertSameAsWholeImage(boolean split) throws IOException {
+        File whole = run("whole-"+split, 0, split), tiled = run("tiled-"+split, 256, split);
+        OutputFiles.assertSame(whole, tiled, "Dataset statistics", Checkpoint.DIR);
+        assertTrue(new File(tiled, DatasetStatistics.REPORT_NAME).exists());
+    }
+
+    @Test
+    public void tileMergeMatchesWholeImage() throws IOException {
+        assertSameAsWholeImage(false);
+    }
+
+    @Test
+    public void tileMergeMatchesWholeImageWithWatershed() throws IOException {
+        assertSameAsWholeImage(true);
+    }
+}
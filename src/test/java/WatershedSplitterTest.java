@@ -0,0 +1,96 @@
+import ij.ImagePlus;
+import ij.plugin.filter.EDM;
+import ij.process.ByteProcessor;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WatershedSplitterTest {
+
+    private static void fillDisc(ByteProcessor bp, int cx, int cy, int r){
+        for(int y=-r; y<=r; y++){
+            for(int x=-r; x<=r; x++){
+                if(x*x+y*y<=r*r && cx+x>=0 && cy+y>=0 && cx+x<bp.getWidth() && cy+y<bp.getHeight()) bp.set(cx+x, cy+y, 255);
+            }
+        }
+    }
+
+    // pairs of overlapping discs, each pair well away from the others
+    private static ByteProcessor makePairs(int n, long seed){
+        Random random = new Random(seed);
+        ByteProcessor bp = new ByteProcessor(80*n, 80);
+        for(int i=0; i<n; i++){
+            int r = 6+random.nextInt(10);
+            fillDisc(bp, 80*i+20, 40, r);
+            fillDisc(bp, 80*i+20+(int) (r*1.5), 40+random.nextInt(3)-1, r);
+        }
+        return bp;
+    }
+
+    @Test
+    public void squaredEDTMatchesBruteForce(){
+        Random random = new Random(2);
+        int w = 41, h = 33;
+        boolean[] inside = new boolean[w*h];
+        // blobs, with the one pixel border left as background the way the splitter pads its crops
+        for(int y=1; y<h-1; y++){
+            for(int x=1; x<w-1; x++) inside[y*w+x] = Math.hypot(x-15, y-16)<12 || Math.hypot(x-30, y-12)<9 || random.nextDouble()<0.05;
+        }
+        int[] dist = WatershedSplitter.getSquaredEDT(inside, w, h);
+        for(int p=0; p<w*h; p++){
+            int best = Integer.MAX_VALUE;
+            if(inside[p]){
+                for(int q=0; q<w*h; q++){
+                    if(inside[q]) continue;
+                    int dx = p%w-q%w, dy = p/w-q/w;
+                    best = Math.min(best, dx*dx+dy*dy);
+                }
+            }
+            else best = 0;
+            assertEquals("pixel "+p, best, dist[p]);
+        }
+    }
+
+    @Test
+    public void splitsTouchingPairs(){
+        int n = 12;
+        BitMask mask = BitMask.fromProcessor(makePairs(n, 3));
+        assertEquals(n, mask.label().nLabels);
+        BitMask split = new WatershedSplitter().split(mask);
+        assertEquals(2*n, split.label().nLabels);
+
+        // only the watershed lines are removed
+        BitMask removed = mask.duplicate();
+        removed.andNot(split);
+        assertEquals(0, split.countOverlap(removed));
+        assertEquals(mask.count(), split.count()+removed.count());
+        assertTrue(removed.count()<mask.count()/10);
+    }
+
+    @Test
+    public void sameCountAsImageJ(){
+        ByteProcessor bp = makePairs(20, 4);
+        ByteProcessor ij = (ByteProcessor) bp.duplicate();
+        new EDM().toWatershed(ij);
+        assertEquals(BitMask.fromProcessor(ij).label().nLabels,
+                new WatershedSplitter(WatershedSplitter.DEFAULT_TOLERANCE, 4).split(BitMask.fromProcessor(bp)).label().nLabels);
+    }
+
+    // SyntheticSlide nuclei never touch, so there is nothing to split
+    @Test
+    public void leavesSeparateNucleiAlone(){
+        ImagePlus slide = new SyntheticSlide(800, 600, 300, 4, 9).generate(0);
+        BitMask nuclei = BitMask.fromProcessor(slide.getStack().getProcessor(2));
+        BitMask split = new WatershedSplitter().split(nuclei);
+        assertArrayEquals(nuclei.getWords(), split.getWords());
+    }
+
+    @Test
+    public void sameResultForAnyNumberOfThreads(){
+        BitMask mask = BitMask.fromProcessor(makePairs(15, 5));
+        long[] one = new WatershedSplitter(WatershedSplitter.DEFAULT_TOLERANCE, 1).split(mask).getWords();
+        assertArrayEquals(one, new WatershedSplitter(WatershedSplitter.DEFAULT_TOLERANCE, 6).split(mask).getWords());
+    }
+}